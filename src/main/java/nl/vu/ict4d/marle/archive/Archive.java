@@ -1,30 +1,55 @@
 package nl.vu.ict4d.marle.archive;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 import nl.vu.ict4d.marle.server.file.FileMeta;
+import nl.vu.ict4d.marle.server.util.Settings;
+import nl.vu.ict4d.marle.server.util.Utilities;
 
 import org.apache.log4j.Logger;
 import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
 //handles saving files to the "database" which is a simple file folder
 public class Archive {
 
 	private static final Logger logger = Logger.getLogger("MarleLogger");
+	/** Folder in the archive where uploads are written until they are complete. */
+	private static final String UPLOAD_DIR = ".upload";
+	/** Folder in the archive with the chunks and manifests of chunked files. */
+	private static final String CHUNK_DIR = "chunks";
+	/** Log in the archive with the checksums of the stored files. */
+	private static final String DIGEST_LOG = "Digests.log";
+	/** The level of the leaves of the hash tree over the filemeta. */
+	public static final int META_TREE_DEPTH = MetaTree.DEPTH;
+	/** The amount of children of a node in the hash tree over the filemeta. */
+	public static final int META_TREE_FANOUT = MetaTree.FANOUT;
 
 	private Path archivePath;
+	private final MetaCatalog catalog = new MetaCatalog();
+	private final MetaJournal journal;
+	private final ChunkStore chunkStore;
+	private final DigestCache digests;
+	/** The space used by the files in the archive, kept up to date on every change. */
+	private final AtomicLong usage = new AtomicLong();
+	private final Object contentLock = new Object();
 
 	// save a file
 	// in save a file u must create a file metadata object and save it to the
@@ -43,6 +68,15 @@ public class Archive {
 		 * NoSuchFileException(archivePath.toString()); }
 		 */
 
+		// Load the meta library once, from here on the catalog is leading
+		Files.createDirectories(archivePath);
+		journal = new MetaJournal(archivePath.resolve("Content"), archivePath.resolve("Content.log"));
+		journal.recover(catalog);
+		logger.info("Loaded " + catalog.size() + " filemeta objects from the meta library.");
+
+		chunkStore = new ChunkStore(archivePath.resolve(CHUNK_DIR), usage);
+		digests = new DigestCache(archivePath.resolve(DIGEST_LOG));
+		reconcileUsage();
 	}
 
         /**
@@ -72,8 +106,23 @@ public class Archive {
          */
 	public void deleteFile(String fileName) throws IOException {
 		Path filePath = archivePath.resolve(fileName);
+		long size = ownedSizeOf(filePath);
 		// this one will delete a file and if does not exist will not cry
-		Files.deleteIfExists(filePath);
+		if (Files.deleteIfExists(filePath)) {
+			usage.addAndGet(-size);
+		}
+	}
+
+        /**
+         * Deletes the file with the given id, whether it is stored whole or
+         * in chunks.
+         * @param id
+         * @throws IOException 
+         */
+	public void deleteFile(UUID id) throws IOException {
+		deleteFile(id.toString());
+		chunkStore.remove(id);
+		digests.remove(id);
 	}
         
         // -------------------------------------
@@ -86,7 +135,26 @@ public class Archive {
          * @throws NoSuchFileException 
          */
 	public void checkIfExists(UUID id) throws NoSuchFileException {
-		checkIfExists(id.toString());
+		if (!chunkStore.contains(id)) {
+			checkIfExists(id.toString());
+		}
+	}
+
+        /**
+         * Checks if the archive has the content of the file with the given id.
+         * @param id
+         */
+	public boolean hasFile(UUID id) {
+		return chunkStore.contains(id) || Files.exists(archivePath.resolve(id.toString()));
+	}
+
+        /**
+         * Checks if the file is kept in chunks. A chunked file has no file
+         * object, it must be read with {@link #getFile(UUID)}.
+         * @param id
+         */
+	public boolean isChunked(UUID id) {
+		return chunkStore.contains(id);
 	}
 
         /**
@@ -121,6 +189,16 @@ public class Archive {
          * @throws IOException 
          */
 	public byte[] getFileBytes(UUID id) throws IOException {
+		if (chunkStore.contains(id)) {
+			try (InputStream stream = chunkStore.open(id, 0)) {
+				byte[] content = new byte[(int) chunkStore.getSize(id)];
+				int offset = 0, read;
+				while (offset < content.length && (read = stream.read(content, offset, content.length - offset)) != -1) {
+					offset += read;
+				}
+				return content;
+			}
+		}
 		return getFileBytes(id.toString());
 	}
 
@@ -156,7 +234,50 @@ public class Archive {
          * @return 
          */
 	public InputStream getFile(UUID id) throws IOException{
-		return getFile(id.toString());
+		return getFile(id, 0);
+	}
+
+        /**
+         * Opens a new inputstream to the given file, starting at the given
+         * position.
+         * @param id
+         * @param offset
+         * @return 
+         * @throws EOFException if the offset is beyond the end of the file
+         */
+	public InputStream getFile(UUID id, long offset) throws IOException{
+		if (chunkStore.contains(id)) {
+			return chunkStore.open(id, offset);
+		}
+		if (offset < 0 || offset > getFileSize(id)) {
+			throw new EOFException("Offset " + offset + " is outside file " + id);
+		}
+		InputStream stream = getFile(id.toString());
+		try {
+			skipFully(stream, offset);
+		} catch (IOException ex) {
+			stream.close();
+			throw ex;
+		}
+		return stream;
+	}
+
+        /**
+         * Skips the given amount of bytes of the stream.
+         * @throws EOFException if the stream ends first
+         */
+	static void skipFully(InputStream stream, long amount) throws IOException {
+		while (amount > 0) {
+			long skipped = stream.skip(amount);
+			if (skipped <= 0) {
+				// skip gives 0 at the end of the stream, but also may before it
+				if (stream.read() < 0) {
+					throw new EOFException(amount + " bytes could not be skipped");
+				}
+				skipped = 1;
+			}
+			amount -= skipped;
+		}
 	}
 
         
@@ -180,6 +301,41 @@ public class Archive {
 
 	}
         
+        // -------------------------------------
+        // Checksum
+        // -------------------------------------
+
+        /**
+         * Gives the MD5 checksum of the content of the file. The checksum
+         * recorded when the file was stored is used as long as the file did
+         * not change, otherwise the file is read and its checksum recorded.
+         * @param id
+         * @return the checksum, or null if the archive does not have the file
+         * @throws IOException if the file could not be read
+         */
+	public byte[] getChecksum(UUID id) throws IOException {
+		Path path = getContentPath(id);
+		if (!Files.exists(path)) {
+			return null;
+		}
+		byte[] checksum = digests.get(id, path);
+		if (checksum == null) {
+			try (InputStream stream = getFile(id)) {
+				checksum = Utilities.createChecksum(stream);
+			}
+			digests.put(id, path, checksum);
+		}
+		return checksum;
+	}
+
+        /**
+         * The file that changes when the content of the file changes, the
+         * manifest of a chunked file.
+         */
+	private Path getContentPath(UUID id) {
+		return chunkStore.contains(id) ? chunkStore.getManifestPath(id) : archivePath.resolve(id.toString());
+	}
+
         // -------------------------------------
         // Get filesize
         // -------------------------------------
@@ -190,6 +346,10 @@ public class Archive {
          * @return 
          */
 	public long getFileSize(UUID id) {
+		long size = chunkStore.getSize(id);
+		if (size >= 0) {
+			return size;
+		}
 		return archivePath.resolve(id.toString()).toFile().length();
 	}
 
@@ -209,6 +369,7 @@ public class Archive {
 	}
 
 	private void saveFile(Path filePath, byte[] fileContent) throws IOException {
+		long oldSize = ownedSizeOf(filePath);
 		try {
 
 			Files.createFile(filePath);
@@ -223,137 +384,521 @@ public class Archive {
 		}
 		Files.write(filePath, fileContent, StandardOpenOption.WRITE,
 				StandardOpenOption.CREATE);
+		usage.addAndGet(fileContent.length - oldSize);
 
 	}
 
         // -------------------------------------
-        // FileMeta
+        // Uploads
         // -------------------------------------
 
-	private JSONArray fileToJSON(Path filePath) throws ParseException {
-		byte[] fileContent = null;
-		JSONArray fileContentJSON = null;
-		try {
-			fileContent = getFileBytes(filePath);
-		} catch (NoSuchFileException ex) {
-			// Create a new, as it does not exist yet
-			fileContentJSON = new JSONArray();
-		} catch (IOException e) {
-			e.printStackTrace();
+        /**
+         * Creates a new, empty temporary file in the archive that an upload
+         * for the given file can be written to. Once the upload is complete
+         * it must be passed to {@link #commitUpload(Path, UUID)}, otherwise
+         * to {@link #discardUpload(Path)}.
+         * @param id the id of the file being uploaded
+         * @return the path of the temporary file
+         * @throws IOException
+         */
+	public Path createUploadFile(UUID id) throws IOException {
+		Path uploadPath = archivePath.resolve(UPLOAD_DIR);
+		Files.createDirectories(uploadPath);
+		return Files.createTempFile(uploadPath, id.toString(), ".tmp");
+	}
+
+        /**
+         * Gives the location where an upload that can be resumed is kept. A
+         * push that breaks off leaves the received part of the file there, so
+         * the next push of the same file can continue where it stopped. Once
+         * the upload is complete it must be passed to
+         * {@link #commitUpload(Path, UUID)}.
+         * @param id the id of the file being uploaded
+         * @return the path of the partial file, which may not exist yet
+         * @throws IOException
+         */
+	public Path getPartialUpload(UUID id) throws IOException {
+		Path uploadPath = archivePath.resolve(UPLOAD_DIR);
+		Files.createDirectories(uploadPath);
+		return uploadPath.resolve(id.toString() + ".part");
+	}
+
+        /**
+         * Moves a completed upload in place. An existing file with the same
+         * id is replaced, readers of the old file are never shown a partial
+         * file.
+         * @param uploadFile the temporary file with the upload
+         * @param id the id of the uploaded file
+         * @throws IOException
+         */
+	public void commitUpload(Path uploadFile, UUID id) throws IOException {
+		commitUpload(uploadFile, id, null);
+	}
+
+        /**
+         * Moves a completed upload in place and records the checksum of its
+         * content, so the file does not have to be read to check it later.
+         * @param uploadFile the temporary file with the upload
+         * @param id the id of the uploaded file
+         * @param checksum the checksum of the upload, or null if not known
+         * @throws IOException
+         */
+	public void commitUpload(Path uploadFile, UUID id, byte[] checksum) throws IOException {
+		digests.remove(id);
+		if (Settings.ARCHIVE_CHUNKING) {
+			// Only the chunks that are not stored yet take space
+			chunkStore.store(id, uploadFile);
+			deleteFile(id.toString());
+			Files.delete(uploadFile);
+		} else {
+			Path filePath = archivePath.resolve(id.toString());
+			long delta = sizeOf(uploadFile) - ownedSizeOf(filePath);
+			Files.move(uploadFile, filePath,
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			usage.addAndGet(delta);
+			chunkStore.remove(id);
+		}
+		if (checksum != null) {
+			digests.put(id, getContentPath(id), checksum);
 		}
+	}
+
+        // -------------------------------------
+        // Chunks
+        // -------------------------------------
+
+        /**
+         * The chunks of a chunked file.
+         * @param id
+         * @return the chunks in file order
+         * @throws IOException if the file is not chunked
+         */
+	public List<Chunk> getManifest(UUID id) throws IOException {
+		return chunkStore.getManifest(id);
+	}
+
+        /**
+         * Checks if a chunk is stored in the archive.
+         * @param hash
+         */
+	public boolean hasChunk(String hash) {
+		return chunkStore.hasChunk(hash);
+	}
+
+        /**
+         * Reads the content of a stored chunk.
+         * @param hash
+         * @throws IOException 
+         */
+	public byte[] readChunk(String hash) throws IOException {
+		return chunkStore.readChunk(hash);
+	}
+
+        /**
+         * Stores a chunk received from another server. It is removed on the
+         * next start unless a file that uses it is committed.
+         * @param hash the hash the content must match
+         * @param content
+         * @param length the length of the content in the array
+         * @throws IOException if the content does not match the hash
+         */
+	public void storeChunk(String hash, byte[] content, int length) throws IOException {
+		chunkStore.storeChunk(hash, content, length);
+	}
+
+        /**
+         * Stores a file that was received as chunks, all chunks must be
+         * stored already. An existing file with the same id is replaced.
+         * @param id
+         * @param chunks the chunks in file order
+         * @param checksum the checksum of the content of the file
+         * @throws IOException 
+         */
+	public void commitChunkedUpload(UUID id, List<Chunk> chunks, byte[] checksum) throws IOException {
+		digests.remove(id);
+		chunkStore.putManifest(id, chunks);
+		deleteFile(id.toString());
+		digests.put(id, chunkStore.getManifestPath(id), checksum);
+	}
 
-		if (fileContentJSON == null) {
-			JSONParser parser = new JSONParser();
+        /**
+         * Looks for a stored file with the given content. The candidates are
+         * found with the checksums in the filemeta and checked against the
+         * recorded checksum of their content.
+         * @param checksum the MD5 checksum of the content
+         * @return the id of a file with that content, or null if there is
+         * none in the archive
+         */
+	public UUID findFileByChecksum(byte[] checksum) {
+		for (UUID id : catalog.idsWithChecksum(checksum)) {
 			try {
-				fileContentJSON = (JSONArray) parser.parse(new String(
-						fileContent));
-			} catch (ParseException pe) {
-				pe.printStackTrace();
+				if (Arrays.equals(getChecksum(id), checksum)) {
+					return id;
+				}
+			} catch (IOException ex) {
+				logger.error("Could not determine the checksum of file " + id, ex);
 			}
 		}
-		return fileContentJSON;
+		return null;
 	}
-        
+
+        /**
+         * Stores the content of an existing file under a second id, without
+         * writing the content again. A whole file is hard linked (or copied if
+         * the file system can not link), a chunked file shares its chunks. An
+         * existing file with the target id is replaced.
+         * @param source the id of the stored file
+         * @param target the id to store the content under
+         * @throws IOException if the source file is gone
+         */
+	public void linkFile(UUID source, UUID target) throws IOException {
+		byte[] checksum = getChecksum(source);
+		digests.remove(target);
+		if (chunkStore.contains(source)) {
+			chunkStore.putManifest(target, chunkStore.getManifest(source));
+			deleteFile(target.toString());
+			if (checksum != null) {
+				digests.put(target, chunkStore.getManifestPath(target), checksum);
+			}
+			return;
+		}
+
+		Path sourcePath = archivePath.resolve(source.toString());
+		Path link = createUploadFile(target);
+		try {
+			Files.delete(link);
+			// A link uses no new space, only a copy does
+			long added = 0;
+			try {
+				Files.createLink(link, sourcePath);
+			} catch (UnsupportedOperationException | IOException ex) {
+				logger.debug("Could not link file " + source + ", copying it instead: " + ex.getMessage());
+				Files.copy(sourcePath, link, StandardCopyOption.REPLACE_EXISTING);
+				added = sizeOf(link);
+			}
+			Path targetPath = archivePath.resolve(target.toString());
+			long delta = added - ownedSizeOf(targetPath);
+			Files.move(link, targetPath,
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			usage.addAndGet(delta);
+		} catch (IOException ex) {
+			discardUpload(link);
+			throw ex;
+		}
+		chunkStore.remove(target);
+		if (checksum != null) {
+			digests.put(target, archivePath.resolve(target.toString()), checksum);
+		}
+	}
+
+        /**
+         * Removes an upload that could not be completed.
+         * @param uploadFile
+         */
+	public void discardUpload(Path uploadFile) {
+		try {
+			Files.deleteIfExists(uploadFile);
+		} catch (IOException ex) {
+			logger.error("Could not remove the incomplete upload " + uploadFile, ex);
+		}
+	}
+
+        // -------------------------------------
+        // FileMeta
+        // -------------------------------------
+
         /**
          * Looks up and returns the filemeta object for the given file.
          * @param fileid
-         * @return
+         * @return a copy of the filemeta, or null if the file is not known
          * @throws IOException 
          */
         public FileMeta getFileMeta(UUID fileid) throws IOException {
-            try {
-		JSONArray contentJSON = getContentFile();
-                JSONObject obj = null;
-		for (int i = 0; i < contentJSON.size(); i++) {
-			if (((JSONObject) contentJSON.get(i)).get("id").equals(fileid.toString())) {
-				obj = (JSONObject) contentJSON.get(i);
-				break;
-			}
-		}
-                
-                if (obj != null) {
-                    try {
-                        return FileMeta.fromJSON(obj);
-                    } catch (java.text.ParseException ex) {
-                        logger.error("Could not parse filemeta from the meta library!",ex);
-                    }
-                } 
-            } catch (ParseException ex) {
-                logger.error("Could not parse the meta library!",ex);
-            }
-            return null;
+		return catalog.get(fileid);
         }
 
+        /**
+         * Lists the ids of the known files in UUID order, starting after the
+         * given id. Used to walk the archive in small steps.
+         * @param after the last id of the previous step, or null to start at
+         * the first file
+         * @param max the max amount of ids to return
+         * @return the ids, less than max if the end was reached
+         */
+	public List<UUID> getFileIds(UUID after, int max) {
+		return catalog.idsAfter(after, max);
+	}
+
+        /**
+         * Lists all filemeta in the archive at this moment, without copying
+         * them. Meant to send the whole catalog while it changes: the list
+         * only holds references to the stored objects.
+         * @return the filemeta objects, which must not be changed
+         */
+	public List<FileMeta> getFileMetaSnapshot() {
+		return Collections.unmodifiableList(catalog.snapshot());
+	}
+
+        /**
+         * Adds or replaces the filemeta in the catalog and writes the change
+         * to the content file. This is a change made by this server, the meta
+         * gets a version above the stored one and the given one.
+         * @param meta the filemeta, its version is set to the new version
+         * @throws IOException 
+         */
 	public void updateContentFile(FileMeta meta) throws IOException {
-            try {
-		Path filePath = archivePath.resolve("Content");
-		JSONArray contentJSON = fileToJSON(filePath);
-                
-                // First check if the meta already exists
-		for (int i = 0; i < contentJSON.size(); i++) {
-			if (((JSONObject) contentJSON.get(i)).get("id").equals(
-					meta.getId().toString())) {
-				contentJSON.remove(i);
-				break;
+		synchronized (contentLock) {
+			long version = meta.getVersion();
+			FileMeta stored = catalog.get(meta.getId());
+			if (stored != null) {
+				version = Math.max(version, stored.getVersion());
+			}
+			MetaChange removal = catalog.getRemoval(meta.getId());
+			if (removal != null) {
+				version = Math.max(version, removal.getVersion());
 			}
+			meta.setVersion(version + 1);
+			catalog.put(meta);
+			journal.logUpdate(catalog, meta);
 		}
-                // add the new meta
-		contentJSON.add(meta.toJSON());
-		saveFile(filePath, contentJSON.toJSONString().getBytes());
+	}
 
-            } catch (ParseException ex) {
-                logger.error("Could not parse the meta library! Failure to update filemeta, contents: \\" + meta.toJSON(), ex);
-            }
+        /**
+         * Stores a copy of the filemeta made by another server, if it is newer
+         * than the stored copy and than a recent removal of the filemeta.
+         * @param meta
+         * @return true if the copy was stored
+         * @throws IOException 
+         */
+	public boolean mergeFileMeta(FileMeta meta) throws IOException {
+		synchronized (contentLock) {
+			MetaChange removal = catalog.getRemoval(meta.getId());
+			if (removal != null && removal.getVersion() >= meta.getVersion()) {
+				return false;
+			}
+			FileMeta stored = catalog.get(meta.getId());
+			if (stored != null && !meta.isNewerThan(stored)) {
+				return false;
+			}
+			catalog.put(meta);
+			journal.logUpdate(catalog, meta);
+			return true;
+		}
 	}
 
-	public void removeMetaFromContentFile(UUID fileid) throws ParseException,
+        /**
+         * Removes the filemeta because a client removed it, this gives the
+         * removal its version.
+         * @param fileid
+         * @return the version of the removal, or 0 if there was no filemeta
+         * @throws ParseException
+         * @throws IOException 
+         */
+	public long removeMetaFromContentFile(UUID fileid) throws ParseException,
 			IOException {
-		Path filePath = archivePath.resolve("Content");
-		JSONArray contentJSON = fileToJSON(filePath);
-		for (int i = 0; i < contentJSON.size(); i++) {
-			if (((JSONObject) contentJSON.get(i)).get("id").equals(
-					fileid.toString())) {
-				contentJSON.remove(i);
-				break;
+		synchronized (contentLock) {
+			if (!catalog.remove(fileid)) {
+				return 0;
+			}
+			long version = catalog.getRemoval(fileid).getVersion();
+			journal.logRemove(catalog, fileid, version);
+			return version;
+		}
+	}
+
+        /**
+         * Removes the filemeta because another server removed it, unless the
+         * stored copy is newer than the removal.
+         * @param fileid
+         * @param version the version of the removal
+         * @return true if the filemeta was removed
+         * @throws IOException 
+         */
+	public boolean mergeRemoval(UUID fileid, long version) throws IOException {
+		synchronized (contentLock) {
+			FileMeta stored = catalog.get(fileid);
+			if (stored == null) {
+				// Nothing to remove, but keep the tombstone to pass it on
+				MetaChange removal = catalog.getRemoval(fileid);
+				if (removal == null || removal.getVersion() < version) {
+					catalog.remove(fileid, version);
+					journal.logRemove(catalog, fileid, version);
+				}
+				return false;
 			}
+			if (stored.getVersion() >= version) {
+				return false;
+			}
+			catalog.remove(fileid, version);
+			journal.logRemove(catalog, fileid, version);
+			return true;
 		}
-		saveFile(filePath, contentJSON.toJSONString().getBytes());
+	}
+
+        /**
+         * Lists the changes to the filemeta after the given sequence number,
+         * in the order they were made. Only the last change of each file is
+         * kept, an older change of a file that changed again is left out.
+         * @param after the sequence number of the last known change, or 0
+         * @param max the max amount of changes to return
+         * @return the changes, less than max if the last change was reached
+         */
+	public List<MetaChange> getMetaChanges(long after, int max) {
+		return catalog.changesAfter(after, max);
+	}
 
+        /**
+         * The sequence number of the last change to the filemeta.
+         * @return 
+         */
+	public long getMetaSequence() {
+		return catalog.getSequence();
 	}
-        
+
+        /**
+         * Marks that another server received all changes up to the given
+         * sequence number of the current epoch.
+         * @param server the address of the server
+         * @param sequence
+         */
+	public void acknowledgeMetaChanges(InetAddress server, long sequence) {
+		catalog.received(server, sequence);
+	}
+
+        /**
+         * Forgets the removals of filemeta that are kept long enough and that
+         * all the given servers received.
+         * @param servers the addresses of the other servers
+         * @return the amount of removals that were forgotten
+         */
+	public int expireRemovals(Collection<InetAddress> servers) {
+		synchronized (contentLock) {
+			return catalog.expireRemovals(servers);
+		}
+	}
+
+        /**
+         * The epoch of the sequence numbers of the changes. Each start of the
+         * archive has its own epoch, numbers from another epoch mean nothing.
+         * @return 
+         */
+	public UUID getMetaEpoch() {
+		return catalog.getEpoch();
+	}
+
+        /**
+         * Gives the hashes of the children of a node in the hash tree over
+         * the filemeta. A node at level l holds the files of which the id
+         * starts with its l hex digits, the root is at level 0 and the leaves
+         * at {@link #META_TREE_DEPTH}.
+         * @param level the level of the node, below the leaves
+         * @param prefix the first level hex digits of the ids below the node
+         * @return the 16 hashes, in the order of their digit
+         */
+	public long[] getMetaTreeChildren(int level, int prefix) {
+		return catalog.getTree().getChildren(level, prefix);
+	}
+
+        /**
+         * Gives the hash of a node in the hash tree over the filemeta.
+         * @param level
+         * @param prefix
+         * @return the hash, 0 if there is no filemeta below the node
+         */
+	public long getMetaTreeHash(int level, int prefix) {
+		return catalog.getTree().getHash(level, prefix);
+	}
+
+        /**
+         * Lists the filemeta below a node of the hash tree.
+         * @param level
+         * @param prefix
+         * @return copies of the filemeta
+         */
+	public List<FileMeta> getFileMetaWithPrefix(int level, int prefix) {
+		return catalog.withPrefix(level, prefix);
+	}
+
+        /**
+         * Lists the removals of filemeta below a node of the filemeta hash
+         * tree, as far as they are kept.
+         * @param level
+         * @param prefix the first level hex digits of the ids
+         * @return the removals, in id order
+         */
+	public List<MetaChange> getRemovalsWithPrefix(int level, int prefix) {
+		return catalog.removalsWithPrefix(level, prefix);
+	}
+
+        /**
+         * Creates a JSON array with all the filemeta in the archive.
+         * @return 
+         */
 	public JSONArray getContentFile() throws ParseException {
-		Path filePath = archivePath.resolve("Content");
-		return fileToJSON(filePath);
+		return catalog.toJSON();
 	}
 
         // -------------------------------------
         // Archive size
         // -------------------------------------
 
-	// archive size calculation
-	public long getArchiveSize() throws IOException {
-                // TODO: Maybe make it cache this somewhere?
-                // And make it update only when something is written etc.
-		MarleFileVisitor test = new MarleFileVisitor();
-		Files.walkFileTree(archivePath, test);
-		return test.getValue();
+        /**
+         * The space used by the archive in bytes. The amount is kept up to
+         * date when files are stored and deleted, uploads that are not
+         * completed are not counted.
+         * @return 
+         */
+	public long getArchiveSize() {
+		return usage.get();
+	}
 
+        /**
+         * Walks the archive to determine the space it uses, which corrects
+         * the kept amount for changes made outside the archive. Changes made
+         * during the walk may be counted twice until the next walk.
+         * @throws IOException 
+         */
+	public void reconcileUsage() throws IOException {
+		long before = usage.get();
+		MarleFileVisitor visitor = new MarleFileVisitor(archivePath.resolve(UPLOAD_DIR));
+		Files.walkFileTree(archivePath, visitor);
+		long drift = visitor.getValue() - before;
+		usage.addAndGet(drift);
+		if (drift != 0) {
+			logger.debug("Archive usage corrected by " + drift + " bytes to " + usage.get() + " bytes.");
+		}
 	}
-        
+
         /**
          * This method will lookup how much space is free in the archive.
-         * If the archive size could not be determined, 0 will be returned.
-         * @return The free space in the archive or 0 is an error occurred. 
-         * Note that 0 can also be the actual free space in the archive!
+         * @return The free space in the archive, can be negative if the
+         * archive is over its max size.
          */
 	public long getArchiveFreeSpace() {
-            try {
-                // For debugging purposes, the size is fixed to 512MB
-                // TODO: get the actual size from the config file
-                return (512 * 1024 * 1024) - getArchiveSize();
-            } catch (IOException ex) {
-                logger.fatal("Could not determine the amount of free space in the archive!");
-                return 0;
-            }
+		return Settings.ARCHIVE_MAX_SIZE - usage.get();
+	}
+
+	private static long sizeOf(Path path) {
+		try {
+			return Files.size(path);
+		} catch (IOException ex) {
+			return 0;
+		}
+	}
+
+	/**
+	 * The space that is freed when the file is removed or replaced: nothing
+	 * if the file is hard linked, as the other links keep the content.
+	 */
+	private static long ownedSizeOf(Path path) {
+		try {
+			Object links = Files.getAttribute(path, "unix:nlink");
+			if (links instanceof Integer && (Integer) links > 1) {
+				return 0;
+			}
+		} catch (UnsupportedOperationException | IllegalArgumentException | IOException ex) {
+			// No link count on this file system, so no links were made
+		}
+		return sizeOf(path);
 	}
 }
@@ -0,0 +1,58 @@
+package nl.vu.ict4d.marle.archive;
+
+/**
+ * A piece of a file in the chunk store. Chunks are identified by the SHA-256
+ * hash of their content, so equal pieces of different files are stored once.
+ */
+public final class Chunk {
+
+	/** The length of the hash of a chunk as a hex string. */
+	public static final int HASH_LENGTH = 64;
+	/** The min length of a chunk, only the last chunk of a file can be shorter. */
+	public static final int MIN_LENGTH = ChunkStore.MIN_CHUNK_SIZE;
+	/** The max length of a chunk. */
+	public static final int MAX_LENGTH = ChunkStore.MAX_CHUNK_SIZE;
+
+	private final String hash;
+	private final int length;
+
+	/**
+	 * @param hash the SHA-256 hash of the content as a hex string
+	 * @param length the length of the content in bytes
+	 */
+	public Chunk(String hash, int length) {
+		this.hash = hash;
+		this.length = length;
+	}
+
+	/**
+	 * Checks if the hash is a SHA-256 hash as a lowercase hex string. Hashes
+	 * are used as file names, so anything else must be refused.
+	 */
+	public static boolean isValidHash(String hash) {
+		if (hash == null || hash.length() != HASH_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < hash.length(); i++) {
+			char c = hash.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The SHA-256 hash of the content as a hex string.
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * The length of the content in bytes.
+	 */
+	public int getLength() {
+		return length;
+	}
+}
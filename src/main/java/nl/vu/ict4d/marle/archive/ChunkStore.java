@@ -0,0 +1,429 @@
+package nl.vu.ict4d.marle.archive;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.vu.ict4d.marle.server.util.Utilities;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Stores files as a list of content-defined chunks. A file is cut where a
+ * rolling (gear) hash over the last bytes matches a pattern, so an insert or
+ * edit in a file only changes the chunks around it. Every unique chunk is
+ * stored once, named by its hash, and a file is kept as a manifest listing
+ * its chunks.
+ *
+ * A chunk is removed when no manifest uses it anymore. Chunks that were
+ * stored for a transfer that never completed are removed on startup.
+ */
+class ChunkStore {
+
+	private static final Logger logger = Logger.getLogger("MarleLogger");
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+	/** No cuts are made before this amount of bytes. */
+	static final int MIN_CHUNK_SIZE = 16 * 1024;
+	/** Gives chunks of 64KB on average (16 bits). */
+	private static final long CUT_MASK = (1L << 16) - 1;
+	/** A cut is always made at this amount of bytes. */
+	static final int MAX_CHUNK_SIZE = 256 * 1024;
+	/** Random values for every byte, fixed so all servers cut files the same way. */
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x4d61726c65L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private final Path dataPath;
+	private final Path manifestPath;
+	/** The amount of manifests using each chunk. */
+	private final Map<String, Integer> references = new HashMap<>();
+	/** The space used by the archive, changed when chunks are added or removed. */
+	private final AtomicLong usage;
+
+	ChunkStore(Path storePath, AtomicLong usage) throws IOException {
+		this.usage = usage;
+		this.dataPath = storePath.resolve("data");
+		this.manifestPath = storePath.resolve("manifests");
+		Files.createDirectories(dataPath);
+		Files.createDirectories(manifestPath);
+		load();
+	}
+
+	/**
+	 * Counts the references of all chunks and removes the chunks that are
+	 * not used.
+	 */
+	private synchronized void load() throws IOException {
+		try (DirectoryStream<Path> manifests = Files.newDirectoryStream(manifestPath)) {
+			for (Path manifest : manifests) {
+				try {
+					for (Chunk chunk : readManifest(manifest)) {
+						addReference(chunk.getHash());
+					}
+				} catch (IOException | RuntimeException ex) {
+					logger.error("Could not read chunk manifest " + manifest + ", skipping.", ex);
+				}
+			}
+		}
+
+		int removed = 0;
+		try (DirectoryStream<Path> folders = Files.newDirectoryStream(dataPath)) {
+			for (Path folder : folders) {
+				try (DirectoryStream<Path> chunks = Files.newDirectoryStream(folder)) {
+					for (Path chunk : chunks) {
+						if (!references.containsKey(chunk.getFileName().toString())) {
+							Files.deleteIfExists(chunk);
+							removed++;
+						}
+					}
+				}
+			}
+		}
+		if (removed > 0) {
+			logger.info("Removed " + removed + " unused chunks from the chunk store.");
+		}
+	}
+
+	/**
+	 * Checks if the file is kept in the chunk store.
+	 */
+	boolean contains(UUID id) {
+		return Files.exists(manifestPath.resolve(id.toString()));
+	}
+
+	/**
+	 * The location of the manifest of the file, which is replaced whenever
+	 * the file changes.
+	 */
+	Path getManifestPath(UUID id) {
+		return manifestPath.resolve(id.toString());
+	}
+
+	/**
+	 * Checks if the chunk with the given hash is stored.
+	 */
+	boolean hasChunk(String hash) {
+		return Files.exists(getChunkPath(hash));
+	}
+
+	/**
+	 * Reads the list of chunks of the file.
+	 * @param id
+	 * @return the chunks in file order
+	 * @throws IOException if the file is not in the chunk store
+	 */
+	List<Chunk> getManifest(UUID id) throws IOException {
+		return readManifest(manifestPath.resolve(id.toString()));
+	}
+
+	/**
+	 * The size of the file in bytes, or -1 if it is not in the chunk store.
+	 */
+	long getSize(UUID id) {
+		try {
+			long size = 0;
+			for (Chunk chunk : getManifest(id)) {
+				size += chunk.getLength();
+			}
+			return size;
+		} catch (IOException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the content of a chunk.
+	 * @param hash
+	 * @throws IOException
+	 */
+	byte[] readChunk(String hash) throws IOException {
+		return Files.readAllBytes(getChunkPath(hash));
+	}
+
+	/**
+	 * Opens the file as a single stream.
+	 * @param id
+	 * @param offset the position in the file to start from
+	 * @throws EOFException if the offset is beyond the end of the file
+	 * @throws IOException
+	 */
+	InputStream open(UUID id, long offset) throws IOException {
+		if (offset < 0) {
+			throw new EOFException("Offset " + offset + " is outside file " + id);
+		}
+		List<Chunk> chunks = getManifest(id);
+		long start = offset;
+		int first = 0;
+		while (first < chunks.size() && offset >= chunks.get(first).getLength()) {
+			offset -= chunks.get(first).getLength();
+			first++;
+		}
+		if (first == chunks.size() && offset > 0) {
+			throw new EOFException("Offset " + start + " is outside file " + id);
+		}
+		InputStream stream = new ChunkInputStream(chunks.subList(first, chunks.size()));
+		try {
+			Archive.skipFully(stream, offset);
+		} catch (IOException ex) {
+			stream.close();
+			throw ex;
+		}
+		return stream;
+	}
+
+	/**
+	 * Cuts the file into chunks and stores it under the given id. An
+	 * existing file with the id is replaced.
+	 * @param id
+	 * @param file the file to store, which is not changed
+	 * @throws IOException
+	 */
+	void store(UUID id, Path file) throws IOException {
+		List<Chunk> chunks = new ArrayList<>();
+		byte[] buffer = new byte[MAX_CHUNK_SIZE];
+
+		try (InputStream input = new BufferedInputStream(Files.newInputStream(file))) {
+			int length;
+			while ((length = nextChunk(input, buffer)) > 0) {
+				String hash = hash(buffer, length);
+				storeChunk(hash, buffer, length);
+				chunks.add(new Chunk(hash, length));
+			}
+		}
+		putManifest(id, chunks);
+	}
+
+	/**
+	 * Reads the next chunk from the input.
+	 * @return the length of the chunk, 0 at the end of the input
+	 */
+	private static int nextChunk(InputStream input, byte[] buffer) throws IOException {
+		long hash = 0;
+		int length = 0;
+		int value;
+		while (length < MAX_CHUNK_SIZE && (value = input.read()) != -1) {
+			buffer[length++] = (byte) value;
+			hash = (hash << 1) + GEAR[value];
+			if (length >= MIN_CHUNK_SIZE && (hash & CUT_MASK) == 0) {
+				break;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Stores a chunk received from another server. The content must match
+	 * the hash. The chunk is not used by a file until a manifest using it is
+	 * stored.
+	 * @throws IOException if the content does not match the hash
+	 */
+	void storeChunk(String hash, byte[] content, int length) throws IOException {
+		if (!hash(content, length).equals(hash)) {
+			throw new IOException("Content of chunk " + hash + " does not match its hash.");
+		}
+		Path chunkPath = getChunkPath(hash);
+		if (Files.exists(chunkPath)) {
+			return;
+		}
+
+		Files.createDirectories(chunkPath.getParent());
+		Path temp = Files.createTempFile(chunkPath.getParent(), hash, ".tmp");
+		try {
+			Files.write(temp, length == content.length ? content : Arrays.copyOf(content, length));
+			Files.move(temp, chunkPath, StandardCopyOption.ATOMIC_MOVE);
+			usage.addAndGet(length);
+		} catch (FileAlreadyExistsException ex) {
+			// Stored at the same time by another transfer
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Stores the manifest of a file, all chunks must be stored already. An
+	 * existing manifest with the id is replaced.
+	 * @param id
+	 * @param chunks
+	 * @throws IOException
+	 */
+	synchronized void putManifest(UUID id, List<Chunk> chunks) throws IOException {
+		StringBuilder content = new StringBuilder();
+		for (Chunk chunk : chunks) {
+			if (!Chunk.isValidHash(chunk.getHash()) || !hasChunk(chunk.getHash())) {
+				throw new IOException("Chunk " + chunk.getHash() + " of file " + id + " is missing.");
+			}
+			content.append(chunk.getHash()).append(' ').append(chunk.getLength()).append('\n');
+		}
+
+		Path manifest = manifestPath.resolve(id.toString());
+		List<Chunk> old = Files.exists(manifest) ? readManifest(manifest) : Collections.<Chunk>emptyList();
+
+		Path temp = manifestPath.resolve(id.toString() + ".new");
+		Files.write(temp, content.toString().getBytes(CHARSET));
+		Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		for (Chunk chunk : chunks) {
+			addReference(chunk.getHash());
+		}
+		for (Chunk chunk : old) {
+			removeReference(chunk.getHash());
+		}
+	}
+
+	/**
+	 * Removes the file from the chunk store, chunks no other file uses are
+	 * removed as well.
+	 * @param id
+	 * @return true if the file was in the chunk store
+	 * @throws IOException
+	 */
+	synchronized boolean remove(UUID id) throws IOException {
+		Path manifest = manifestPath.resolve(id.toString());
+		if (!Files.exists(manifest)) {
+			return false;
+		}
+		List<Chunk> chunks = readManifest(manifest);
+		Files.delete(manifest);
+		for (Chunk chunk : chunks) {
+			removeReference(chunk.getHash());
+		}
+		return true;
+	}
+
+	private void addReference(String hash) {
+		Integer count = references.get(hash);
+		references.put(hash, count == null ? 1 : count + 1);
+	}
+
+	private void removeReference(String hash) throws IOException {
+		Integer count = references.get(hash);
+		if (count == null || count <= 1) {
+			references.remove(hash);
+			Path chunkPath = getChunkPath(hash);
+			try {
+				long size = Files.size(chunkPath);
+				Files.delete(chunkPath);
+				usage.addAndGet(-size);
+			} catch (NoSuchFileException ex) {
+				// Already gone
+			}
+		} else {
+			references.put(hash, count - 1);
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the hash is not a valid chunk hash
+	 */
+	private Path getChunkPath(String hash) {
+		if (!Chunk.isValidHash(hash)) {
+			throw new IllegalArgumentException("Invalid chunk hash: " + hash);
+		}
+		return dataPath.resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+	private static List<Chunk> readManifest(Path manifest) throws IOException {
+		List<Chunk> chunks = new ArrayList<>();
+		for (String line : Files.readAllLines(manifest, CHARSET)) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			int split = line.indexOf(' ');
+			chunks.add(new Chunk(line.substring(0, split), Integer.parseInt(line.substring(split + 1))));
+		}
+		return chunks;
+	}
+
+	/**
+	 * Creates the SHA-256 hash of the content as a hex string.
+	 */
+	static String hash(byte[] content, int length) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(content, 0, length);
+			return Utilities.md5HashByteToString(digest.digest());
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException("Could not calculate chunk hash!", ex);
+		}
+	}
+
+	/**
+	 * Reads the chunks of a file one after the other.
+	 */
+	private class ChunkInputStream extends InputStream {
+
+		private final List<Chunk> chunks;
+		private int next = 0;
+		private InputStream current;
+
+		ChunkInputStream(List<Chunk> chunks) {
+			this.chunks = chunks;
+		}
+
+		/**
+		 * Opens the next chunk when the current one is done.
+		 * @return false at the end of the file
+		 */
+		private boolean advance() throws IOException {
+			while (current == null) {
+				if (next >= chunks.size()) {
+					return false;
+				}
+				current = Files.newInputStream(getChunkPath(chunks.get(next++).getHash()));
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			while (advance()) {
+				int read = current.read(b, off, len);
+				if (read != -1) {
+					return read;
+				}
+				current.close();
+				current = null;
+			}
+			return -1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (current != null) {
+				current.close();
+				current = null;
+			}
+			next = chunks.size();
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package nl.vu.ict4d.marle.archive;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nl.vu.ict4d.marle.server.util.AppendLog;
+import nl.vu.ict4d.marle.server.util.Utilities;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Remembers the checksum of the content of the stored files, so a file does
+ * not have to be read to know its checksum. A checksum is recorded together
+ * with the size and modification time of the file it was made of, when the
+ * file changed since then the checksum is no longer used.
+ *
+ * The checksums are kept in a log in the archive, so they survive a restart.
+ */
+class DigestCache {
+
+	private static final Logger logger = Logger.getLogger("MarleLogger");
+	/** The amount of log records after which the log is rewritten. */
+	private static final int COMPACT_THRESHOLD = 1000;
+	private static final String REMOVED = "-";
+
+	private final Map<UUID, Entry> entries = new ConcurrentHashMap<>();
+	private final AppendLog log;
+
+	/**
+	 * Opens the cache kept in the given log.
+	 * @param logPath
+	 * @throws IOException if the log could not be read
+	 */
+	DigestCache(Path logPath) throws IOException {
+		this.log = new AppendLog(logPath);
+		for (String record : log.readRecords()) {
+			try {
+				String[] fields = record.split(" ");
+				UUID id = UUID.fromString(fields[0]);
+				if (fields[1].equals(REMOVED)) {
+					entries.remove(id);
+				} else {
+					entries.put(id, new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+							Utilities.md5HashStringToByte(fields[3])));
+				}
+			} catch (RuntimeException ex) {
+				logger.error("Invalid record in the checksum cache, skipping: " + record, ex);
+			}
+		}
+		synchronized (log) {
+			compact();
+		}
+	}
+
+	/**
+	 * Gives the recorded checksum of the file, if the file did not change
+	 * since it was recorded.
+	 * @param id
+	 * @param file the file the content of the id is kept in
+	 * @return the checksum, or null if it is not known
+	 */
+	byte[] get(UUID id, Path file) {
+		Entry entry = entries.get(id);
+		if (entry == null) {
+			return null;
+		}
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			if (attributes.size() == entry.size && attributes.lastModifiedTime().toMillis() == entry.modified) {
+				return entry.checksum.clone();
+			}
+		} catch (IOException ex) {
+			// The file is gone, so is the checksum
+		}
+		return null;
+	}
+
+	/**
+	 * Records the checksum of the file as it is now.
+	 * @param id
+	 * @param file the file the content of the id is kept in
+	 * @param checksum
+	 */
+	void put(UUID id, Path file, byte[] checksum) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			Entry entry = new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), checksum.clone());
+			synchronized (log) {
+				entries.put(id, entry);
+				append(id + " " + entry.toRecord());
+			}
+		} catch (IOException ex) {
+			logger.error("Could not record the checksum of file " + id, ex);
+		}
+	}
+
+	/**
+	 * Forgets the checksum of the file.
+	 * @param id
+	 */
+	void remove(UUID id) {
+		synchronized (log) {
+			if (entries.remove(id) != null) {
+				append(id + " " + REMOVED);
+			}
+		}
+	}
+
+	private void append(String record) {
+		try {
+			log.append(record);
+			if (log.getRecordCount() >= COMPACT_THRESHOLD && log.getRecordCount() > 2 * entries.size()) {
+				compact();
+			}
+		} catch (IOException ex) {
+			// Only costs a rehash of the file later on
+			logger.error("Could not write the checksum cache.", ex);
+		}
+	}
+
+	/**
+	 * Rewrites the log with only the current checksums.
+	 */
+	private void compact() {
+		List<String> records = new ArrayList<>(entries.size());
+		for (Map.Entry<UUID, Entry> entry : entries.entrySet()) {
+			records.add(entry.getKey() + " " + entry.getValue().toRecord());
+		}
+		try {
+			log.rewrite(records);
+		} catch (IOException ex) {
+			logger.error("Could not rewrite the checksum cache.", ex);
+		}
+	}
+
+	/**
+	 * The checksum of a file and the state of the file it was made of.
+	 */
+	private static class Entry {
+
+		private final long size;
+		private final long modified;
+		private final byte[] checksum;
+
+		Entry(long size, long modified, byte[] checksum) {
+			this.size = size;
+			this.modified = modified;
+			this.checksum = checksum;
+		}
+
+		String toRecord() {
+			return size + " " + modified + " " + Utilities.md5HashByteToString(checksum);
+		}
+	}
+}
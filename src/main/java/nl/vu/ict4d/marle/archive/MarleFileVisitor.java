@@ -5,17 +5,46 @@ import java.nio.file.FileVisitResult;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
 
 class MarleFileVisitor extends SimpleFileVisitor<Path> {
 	private long size = 0;
+	private final Path skip;
+	/** The files seen, so a hard linked file is only counted once. */
+	private final Set<Object> seen = new HashSet<>();
 
 	public MarleFileVisitor() {
+		this(null);
+	}
+
+	/**
+	 * @param skip a folder that is not counted, or null
+	 */
+	public MarleFileVisitor(Path skip) {
+		this.skip = skip;
+	}
+
+	@Override
+	public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+			throws IOException {
+		return dir.equals(skip) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
 	}
 
 	@Override
 	public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
 			throws IOException {
-		size += attrs.size();
+		Object key = attrs.fileKey();
+		if (key == null || seen.add(key)) {
+			size += attrs.size();
+		}
+		return FileVisitResult.CONTINUE;
+	}
+
+	@Override
+	public FileVisitResult visitFileFailed(Path file, IOException exc)
+			throws IOException {
+		// Removed while walking
 		return FileVisitResult.CONTINUE;
 	}
 
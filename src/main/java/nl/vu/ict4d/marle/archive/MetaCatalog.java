@@ -0,0 +1,424 @@
+package nl.vu.ict4d.marle.archive;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import nl.vu.ict4d.marle.server.file.FileMeta;
+import nl.vu.ict4d.marle.server.util.Settings;
+import nl.vu.ict4d.marle.server.util.Utilities;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Resident index of all the filemeta in the archive, keyed on the file id.
+ * The catalog is loaded once from the content file and kept in sync by the
+ * archive on every write, so lookups never touch the disk.
+ *
+ * The catalog only hands out copies, callers are free to change the objects
+ * they get without affecting the stored version.
+ *
+ * Next to the map the ids are kept in order, so the catalog can be walked in
+ * slices while it is being changed. Changes must not run concurrently, the
+ * archive and the journal replay take care of that.
+ *
+ * The ids are also indexed on the checksum of their content, so a file can
+ * be found by its content without reading any file.
+ *
+ * Every change is numbered, so other servers can ask for the changes since
+ * the last one they saw. The numbers only hold within one epoch: the catalog
+ * gets a new epoch each time it is created, as the numbering is not kept
+ * over a restart. The tombstones of removed filemeta are, they are only
+ * forgotten once every server has received them.
+ *
+ * A hash tree over the filemeta is kept up to date as well, so the catalog
+ * can be compared with the one of another server (see {@link MetaTree}).
+ */
+class MetaCatalog {
+
+	private static final Logger logger = Logger.getLogger("MarleLogger");
+
+	private final Map<UUID, FileMeta> metas = new ConcurrentHashMap<>();
+	private final NavigableSet<UUID> ids = new ConcurrentSkipListSet<>();
+	private final Map<String, Set<UUID>> checksums = new ConcurrentHashMap<>();
+	private final MetaTree tree = new MetaTree();
+
+	private final UUID epoch = UUID.randomUUID();
+	private volatile long sequence = 0;
+	/** The last change of every id, on sequence number. */
+	private final NavigableMap<Long, MetaChange> changes = new ConcurrentSkipListMap<>();
+	private final ConcurrentMap<UUID, MetaChange> lastChange = new ConcurrentHashMap<>();
+	/** The removals in the order they were made, to forget them in time. */
+	private final Queue<MetaChange> tombstones = new ArrayDeque<>();
+	/** The removals that are kept, in id order like the ids. */
+	private final NavigableMap<UUID, MetaChange> removals = new ConcurrentSkipListMap<>();
+	/** The sequence number up to which every server received the changes, on its address. */
+	private final ConcurrentMap<InetAddress, Long> received = new ConcurrentHashMap<>();
+
+	/**
+	 * Fills the catalog with the contents of the given JSON array.
+	 * @param contentJSON the parsed content file
+	 */
+	void load(JSONArray contentJSON) {
+		for (int i = 0; i < contentJSON.size(); i++) {
+			try {
+				FileMeta meta = FileMeta.fromJSON((JSONObject) contentJSON.get(i));
+				if (meta != null) {
+					index(meta.getId(), metas.put(meta.getId(), meta), meta);
+					ids.add(meta.getId());
+					record(meta.getId(), meta.getVersion(), false, System.currentTimeMillis());
+				}
+			} catch (java.text.ParseException ex) {
+				logger.error("Could not parse filemeta from the meta library, skipping entry!", ex);
+			}
+		}
+	}
+
+	/**
+	 * Looks up the filemeta for the given id.
+	 * @param id
+	 * @return a copy of the stored filemeta or NULL if it is not known
+	 */
+	FileMeta get(UUID id) {
+		FileMeta meta = metas.get(id);
+		return meta == null ? null : meta.copy();
+	}
+
+	/**
+	 * Checks if the catalog holds meta for the given id.
+	 */
+	boolean contains(UUID id) {
+		return metas.containsKey(id);
+	}
+
+	/**
+	 * Adds or replaces the filemeta with the same id.
+	 * @param meta
+	 */
+	void put(FileMeta meta) {
+		FileMeta copy = meta.copy();
+		index(meta.getId(), metas.put(meta.getId(), copy), copy);
+		ids.add(meta.getId());
+		record(meta.getId(), meta.getVersion(), false, System.currentTimeMillis());
+	}
+
+	/**
+	 * Removes the filemeta with the given id, the tombstone gets the next
+	 * version of the filemeta.
+	 * @param id
+	 * @return true if there was meta for the id
+	 */
+	boolean remove(UUID id) {
+		FileMeta old = metas.get(id);
+		return old != null && remove(id, old.getVersion() + 1);
+	}
+
+	/**
+	 * Removes the filemeta with the given id and leaves a tombstone with the
+	 * given version. The tombstone is also kept when there was no meta, so
+	 * the removal is passed on.
+	 * @param id
+	 * @param version
+	 * @return true if there was meta for the id
+	 */
+	boolean remove(UUID id, long version) {
+		return remove(id, version, System.currentTimeMillis());
+	}
+
+	private boolean remove(UUID id, long version, long time) {
+		ids.remove(id);
+		FileMeta old = metas.remove(id);
+		index(id, old, null);
+		record(id, version, true, time);
+		return old != null;
+	}
+
+	/**
+	 * Puts back a tombstone that was kept over a restart, unless the stored
+	 * filemeta is newer.
+	 * @param id
+	 * @param version the version of the removal
+	 * @param time the time of the removal
+	 */
+	void restoreRemoval(UUID id, long version, long time) {
+		FileMeta stored = metas.get(id);
+		if (stored == null || stored.getVersion() < version) {
+			remove(id, version, time);
+		}
+	}
+
+	/**
+	 * Lists the tombstones, in the order the removals were made.
+	 */
+	List<MetaChange> removalsSnapshot() {
+		List<MetaChange> result = new ArrayList<>();
+		for (MetaChange tombstone : tombstones) {
+			if (lastChange.get(tombstone.getId()) == tombstone) {
+				result.add(tombstone);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Looks up the tombstone of the given id.
+	 * @param id
+	 * @return the removal of the filemeta, or null if it was not removed
+	 * recently
+	 */
+	MetaChange getRemoval(UUID id) {
+		MetaChange change = lastChange.get(id);
+		return change != null && change.isRemoval() ? change : null;
+	}
+
+	/**
+	 * Lists the last changes of the ids, in the order they were made,
+	 * starting after the given sequence number.
+	 * @param after the sequence number to start after, 0 for all changes
+	 * @param max the max amount of changes to return
+	 */
+	List<MetaChange> changesAfter(long after, int max) {
+		List<MetaChange> result = new ArrayList<>(Math.min(max, 1024));
+		for (MetaChange change : changes.tailMap(after, false).values()) {
+			if (result.size() >= max) {
+				break;
+			}
+			result.add(change);
+		}
+		return result;
+	}
+
+	/**
+	 * The sequence number of the last change.
+	 */
+	long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * The epoch the sequence numbers belong to.
+	 */
+	UUID getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Marks that a server received all changes up to the given sequence
+	 * number, it asked for the changes after it.
+	 * @param server the address of the server
+	 * @param sequence
+	 */
+	void received(InetAddress server, long sequence) {
+		received.put(server, sequence);
+	}
+
+	/**
+	 * Forgets the tombstones that are older than
+	 * {@link Settings#META_TOMBSTONE_TIME} and that all the given servers
+	 * received. A server that did not ask for the changes since the catalog
+	 * was created keeps all tombstones.
+	 * @param servers the addresses of the other servers
+	 * @return the amount of tombstones that were forgotten
+	 */
+	int expireRemovals(Collection<InetAddress> servers) {
+		long passed = Long.MAX_VALUE;
+		for (InetAddress server : servers) {
+			Long sequence = received.get(server);
+			if (sequence == null) {
+				return 0;
+			}
+			passed = Math.min(passed, sequence);
+		}
+		long expired = System.currentTimeMillis() - Settings.META_TOMBSTONE_TIME;
+		int count = 0;
+		while (!tombstones.isEmpty() && tombstones.peek().getTime() < expired
+				&& tombstones.peek().getSequence() <= passed) {
+			MetaChange tombstone = tombstones.poll();
+			if (lastChange.remove(tombstone.getId(), tombstone)) {
+				changes.remove(tombstone.getSequence());
+				removals.remove(tombstone.getId());
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Numbers the change as the last change of the id.
+	 */
+	private void record(UUID id, long version, boolean removal, long time) {
+		MetaChange change = new MetaChange(id, sequence + 1, version, removal, time);
+		changes.put(change.getSequence(), change);
+		MetaChange previous = lastChange.put(id, change);
+		if (previous != null) {
+			changes.remove(previous.getSequence());
+		}
+		sequence = change.getSequence();
+		if (removal) {
+			tombstones.add(change);
+			removals.put(id, change);
+		} else {
+			removals.remove(id);
+		}
+	}
+
+	/**
+	 * Lists the ids of the files with the given checksum.
+	 * @param checksum the MD5 checksum of the content
+	 */
+	List<UUID> idsWithChecksum(byte[] checksum) {
+		Set<UUID> result = checksum == null ? null : checksums.get(Utilities.md5HashByteToString(checksum));
+		return result == null ? Collections.<UUID>emptyList() : new ArrayList<>(result);
+	}
+
+	/**
+	 * Gives the hash tree over the filemeta.
+	 */
+	MetaTree getTree() {
+		return tree;
+	}
+
+	/**
+	 * Lists the filemeta below a node of the hash tree.
+	 * @param level
+	 * @param prefix the first level hex digits of the ids
+	 * @return copies of the filemeta, in id order
+	 */
+	List<FileMeta> withPrefix(int level, int prefix) {
+		UUID[] bounds = prefixBounds(level, prefix);
+		Set<UUID> range = bounds[1] == null
+				? ids.tailSet(bounds[0], true)
+				: ids.subSet(bounds[0], true, bounds[1], false);
+		List<FileMeta> result = new ArrayList<>();
+		for (UUID id : range) {
+			FileMeta meta = get(id);
+			if (meta != null) {
+				result.add(meta);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Lists the tombstones of the removed filemeta below a node of the hash
+	 * tree, which the tree itself does not cover.
+	 * @param level
+	 * @param prefix the first level hex digits of the ids
+	 * @return the removals, in id order
+	 */
+	List<MetaChange> removalsWithPrefix(int level, int prefix) {
+		UUID[] bounds = prefixBounds(level, prefix);
+		Map<UUID, MetaChange> range = bounds[1] == null
+				? removals.tailMap(bounds[0], true)
+				: removals.subMap(bounds[0], true, bounds[1], false);
+		return new ArrayList<>(range.values());
+	}
+
+	/**
+	 * The first id below a node of the hash tree and the first id after it.
+	 * @return the two ids, the second is null if the range runs to the end
+	 */
+	private static UUID[] prefixBounds(int level, int prefix) {
+		MetaTree.checkNode(level, prefix);
+		int shift = 64 - 4 * level;
+		long low = level == 0 ? Long.MIN_VALUE : (long) prefix << shift;
+		long high = level == 0 ? Long.MIN_VALUE : low + (1L << shift);
+		// Ids are ordered on their signed bits, the last positive node wraps around
+		return new UUID[] {new UUID(low, Long.MIN_VALUE), high <= low ? null : new UUID(high, Long.MIN_VALUE)};
+	}
+
+	/**
+	 * Moves the id in the checksum index from the old to the new checksum,
+	 * and in the hash tree from the old to the new meta.
+	 * @param oldMeta the replaced meta, or null
+	 * @param newMeta the new meta, or null if the id was removed
+	 */
+	private void index(UUID id, FileMeta oldMeta, FileMeta newMeta) {
+		tree.update(id, oldMeta, newMeta);
+		byte[] oldChecksum = oldMeta == null ? null : oldMeta.getChecksum();
+		byte[] newChecksum = newMeta == null ? null : newMeta.getChecksum();
+		if (oldChecksum != null && newChecksum != null && Arrays.equals(oldChecksum, newChecksum)) {
+			return;
+		}
+		if (oldChecksum != null) {
+			String key = Utilities.md5HashByteToString(oldChecksum);
+			Set<UUID> set = checksums.get(key);
+			if (set != null) {
+				set.remove(id);
+				if (set.isEmpty()) {
+					checksums.remove(key);
+				}
+			}
+		}
+		if (newChecksum != null) {
+			String key = Utilities.md5HashByteToString(newChecksum);
+			Set<UUID> set = checksums.get(key);
+			if (set == null) {
+				set = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+				checksums.put(key, set);
+			}
+			set.add(id);
+		}
+	}
+
+	/**
+	 * Lists the ids in the catalog in order, starting after the given id.
+	 * @param after the id to start after, or null to start at the first id
+	 * @param max the max amount of ids to return
+	 */
+	List<UUID> idsAfter(UUID after, int max) {
+		List<UUID> result = new ArrayList<>(Math.min(max, 1024));
+		for (UUID id : after == null ? ids : ids.tailSet(after, false)) {
+			if (result.size() >= max) {
+				break;
+			}
+			result.add(id);
+		}
+		return result;
+	}
+
+	/**
+	 * Lists the filemeta in the catalog at this moment. The objects are the
+	 * stored ones, which are replaced but never changed by the catalog, so
+	 * they must not be changed by the caller either.
+	 */
+	List<FileMeta> snapshot() {
+		return new ArrayList<>(metas.values());
+	}
+
+	/**
+	 * The amount of filemeta objects in the catalog.
+	 */
+	int size() {
+		return metas.size();
+	}
+
+	/**
+	 * Creates a JSON array with all the filemeta in the catalog.
+	 */
+	// JSONArray is a raw ArrayList, its elements can not be typed
+	@SuppressWarnings("unchecked")
+	JSONArray toJSON() {
+		JSONArray contentJSON = new JSONArray();
+		for (FileMeta meta : metas.values()) {
+			contentJSON.add(meta.toJSON());
+		}
+		return contentJSON;
+	}
+}
@@ -0,0 +1,60 @@
+package nl.vu.ict4d.marle.archive;
+
+import java.util.UUID;
+
+/**
+ * A change to the filemeta in the catalog. Every change gets the next
+ * sequence number of the catalog, only the last change of an id is kept.
+ * A removal is kept as a tombstone until all other servers received it.
+ */
+public final class MetaChange {
+
+	private final UUID id;
+	private final long sequence;
+	private final long version;
+	private final boolean removal;
+	private final long time;
+
+	MetaChange(UUID id, long sequence, long version, boolean removal, long time) {
+		this.id = id;
+		this.sequence = sequence;
+		this.version = version;
+		this.removal = removal;
+		this.time = time;
+	}
+
+	/**
+	 * @return the id of the changed filemeta
+	 */
+	public UUID getId() {
+		return id;
+	}
+
+	/**
+	 * @return the sequence number of the change in the catalog
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return the version of the filemeta after the change
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return true if the filemeta was removed
+	 */
+	public boolean isRemoval() {
+		return removal;
+	}
+
+	/**
+	 * @return the time the change was made
+	 */
+	long getTime() {
+		return time;
+	}
+}
@@ -0,0 +1,229 @@
+package nl.vu.ict4d.marle.archive;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import nl.vu.ict4d.marle.server.file.FileMeta;
+import nl.vu.ict4d.marle.server.util.AppendLog;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Keeps the catalog durable. Every change to the catalog is appended to a
+ * small log, once the log grows too long the whole catalog is written to the
+ * content file (the snapshot) and the log is cleared. The tombstones of
+ * removed filemeta are written next to the snapshot, one line with the id,
+ * the version and the time of the removal for each.
+ *
+ * The snapshot is written in the background, so changes are not held up by
+ * it: the log is moved aside and a new log is started, once the snapshot is
+ * written the old log is removed.
+ *
+ * On startup the snapshot and the tombstones are loaded and the old and new
+ * log are replayed on top of them.
+ */
+class MetaJournal {
+
+	private static final Logger logger = Logger.getLogger("MarleLogger");
+	/** The amount of logged changes after which the snapshot is rewritten. */
+	private static final int COMPACT_THRESHOLD = 1000;
+	private static final String RECORD_UPDATE = "U ";
+	private static final String RECORD_REMOVE = "R ";
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private final Path snapshotPath;
+	private final Path removalsPath;
+	private final AppendLog log;
+	/** The log moved aside until the snapshot that holds its changes is written. */
+	private final Path rotatedPath;
+	private final ExecutorService compactor;
+	private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+	MetaJournal(Path snapshotPath, Path logPath) throws IOException {
+		this.snapshotPath = snapshotPath;
+		this.removalsPath = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".removed");
+		this.log = new AppendLog(logPath);
+		this.rotatedPath = logPath.resolveSibling(logPath.getFileName() + ".old");
+		this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "MARLE META COMPACT");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Loads the snapshot into the catalog and replays the logged changes.
+	 * @param catalog an empty catalog
+	 * @throws IOException if the snapshot or log could not be read
+	 */
+	void recover(MetaCatalog catalog) throws IOException {
+		if (Files.exists(snapshotPath)) {
+			try {
+				byte[] content = Files.readAllBytes(snapshotPath);
+				catalog.load((JSONArray) new JSONParser().parse(new String(content)));
+			} catch (ParseException ex) {
+				throw new IOException("Could not parse the meta library!", ex);
+			}
+		}
+		if (Files.exists(removalsPath)) {
+			for (String line : Files.readAllLines(removalsPath, CHARSET)) {
+				try {
+					String[] fields = line.split(" ");
+					catalog.restoreRemoval(UUID.fromString(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+				} catch (RuntimeException ex) {
+					logger.error("Invalid tombstone in the meta library, skipping: " + line, ex);
+				}
+			}
+		}
+
+		List<String> records = new ArrayList<>();
+		if (Files.exists(rotatedPath)) {
+			// The snapshot that holds these changes may not have been written
+			try (AppendLog rotated = new AppendLog(rotatedPath)) {
+				records.addAll(rotated.readRecords());
+			}
+		}
+		records.addAll(log.readRecords());
+
+		int replayed = 0;
+		for (String record : records) {
+			try {
+				if (record.startsWith(RECORD_UPDATE)) {
+					JSONObject obj = (JSONObject) JSONValue.parse(record.substring(RECORD_UPDATE.length()));
+					FileMeta meta = FileMeta.fromJSON(obj);
+					if (meta != null) {
+						catalog.put(meta);
+					}
+				} else if (record.startsWith(RECORD_REMOVE)) {
+					String[] fields = record.substring(RECORD_REMOVE.length()).split(" ");
+					if (fields.length > 1) {
+						catalog.remove(UUID.fromString(fields[0]), Long.parseLong(fields[1]));
+					} else {
+						// Written before removals had a version
+						catalog.remove(UUID.fromString(fields[0]));
+					}
+				} else {
+					logger.error("Unknown record in the meta log, skipping: " + record);
+					continue;
+				}
+				replayed++;
+			} catch (java.text.ParseException | RuntimeException ex) {
+				logger.error("Invalid record in the meta log, skipping: " + record, ex);
+			}
+		}
+
+		if (replayed > 0) {
+			logger.info("Replayed " + replayed + " changes from the meta log.");
+			compact(catalog);
+		}
+		Files.deleteIfExists(rotatedPath);
+	}
+
+	/**
+	 * Logs that the given filemeta was added or changed.
+	 */
+	void logUpdate(MetaCatalog catalog, FileMeta meta) throws IOException {
+		log.append(RECORD_UPDATE + meta.toJSON().toJSONString());
+		compactIfNeeded(catalog);
+	}
+
+	/**
+	 * Logs that the filemeta with the given id was removed.
+	 * @param version the version of the removal
+	 */
+	void logRemove(MetaCatalog catalog, UUID id, long version) throws IOException {
+		log.append(RECORD_REMOVE + id.toString() + " " + version);
+		compactIfNeeded(catalog);
+	}
+
+	/**
+	 * Starts writing the snapshot in the background once the log is too long.
+	 * Must be called under the same lock as the changes of the catalog, so the
+	 * copy of the catalog holds exactly the changes in the rotated log.
+	 */
+	private void compactIfNeeded(MetaCatalog catalog) throws IOException {
+		if (log.getRecordCount() < COMPACT_THRESHOLD || !compacting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			final JSONArray snapshot = catalog.toJSON();
+			final List<MetaChange> removals = catalog.removalsSnapshot();
+			// After a failed snapshot the rotated log is still needed, the log
+			// then keeps its changes until the next snapshot
+			if (!Files.exists(rotatedPath)) {
+				log.rotate(rotatedPath);
+			}
+			compactor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						writeSnapshot(snapshot, removals);
+						Files.deleteIfExists(rotatedPath);
+						logger.debug("Meta library compacted, " + snapshot.size() + " filemeta objects written.");
+					} catch (IOException ex) {
+						logger.error("Could not write the meta library, the meta log is kept.", ex);
+					} finally {
+						compacting.set(false);
+					}
+				}
+			});
+		} catch (IOException | RuntimeException ex) {
+			compacting.set(false);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Writes the full catalog to the snapshot and clears the log, on the
+	 * calling thread.
+	 */
+	void compact(MetaCatalog catalog) throws IOException {
+		writeSnapshot(catalog.toJSON(), catalog.removalsSnapshot());
+		log.truncate();
+		logger.debug("Meta library compacted, " + catalog.size() + " filemeta objects written.");
+	}
+
+	/**
+	 * Writes the tombstones and then the snapshot. Both are moved in place
+	 * atomically, a crash in between leaves the old files and the logs (which
+	 * will be replayed again). Newer tombstones with an older snapshot do no
+	 * harm, as the logs remove the same filemeta.
+	 */
+	private void writeSnapshot(JSONArray snapshot, List<MetaChange> removals) throws IOException {
+		StringBuilder lines = new StringBuilder();
+		for (MetaChange removal : removals) {
+			lines.append(removal.getId()).append(' ').append(removal.getVersion())
+					.append(' ').append(removal.getTime()).append('\n');
+		}
+		writeAtomically(removalsPath, lines.toString().getBytes(CHARSET));
+		writeAtomically(snapshotPath, snapshot.toJSONString().getBytes());
+	}
+
+	private static void writeAtomically(Path path, byte[] content) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + ".new");
+		Files.write(temp, content,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SYNC);
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
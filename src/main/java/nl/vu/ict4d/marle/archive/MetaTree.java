@@ -0,0 +1,119 @@
+package nl.vu.ict4d.marle.archive;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import nl.vu.ict4d.marle.server.file.FileMeta;
+import nl.vu.ict4d.marle.server.file.FileMetaCodec;
+import nl.vu.ict4d.marle.server.util.Utilities;
+
+/**
+ * Hash tree over the filemeta in the catalog, so two servers can find the
+ * filemeta they differ in without sending all of it. The filemeta is put in
+ * buckets on the first hex digits of its id: a node at level l holds the
+ * ids that start with its l digits, the root (level 0) holds all ids and
+ * every node has {@link #FANOUT} children, down to the leaves at level
+ * {@link #DEPTH}.
+ *
+ * The hash of a node is the XOR of the hashes of the filemeta below it, so
+ * a change only updates one node per level and the tree never has to be
+ * rebuilt. Two servers with the same filemeta below a node have the same
+ * hash for it, as encoding the same filemeta always gives the same bytes.
+ *
+ * Changes must not run concurrently, the catalog takes care of that.
+ */
+class MetaTree {
+
+	/** The amount of children of a node, one per hex digit. */
+	static final int FANOUT = 16;
+	/** The level of the leaves, 16^3 = 4096 buckets. */
+	static final int DEPTH = 3;
+
+	private final AtomicLongArray[] levels = new AtomicLongArray[DEPTH + 1];
+
+	MetaTree() {
+		for (int level = 0; level <= DEPTH; level++) {
+			levels[level] = new AtomicLongArray(1 << (4 * level));
+		}
+	}
+
+	/**
+	 * Replaces the old filemeta of an id with the new one.
+	 * @param id
+	 * @param oldMeta the replaced meta, or null
+	 * @param newMeta the new meta, or null if the id was removed
+	 */
+	void update(UUID id, FileMeta oldMeta, FileMeta newMeta) {
+		long change = hash(oldMeta) ^ hash(newMeta);
+		if (change == 0) {
+			return;
+		}
+		for (int level = 0; level <= DEPTH; level++) {
+			int node = prefix(id, level);
+			levels[level].set(node, levels[level].get(node) ^ change);
+		}
+	}
+
+	/**
+	 * Gives the hash of a node.
+	 * @param level
+	 * @param prefix the first level hex digits of the ids below the node
+	 * @return the hash, 0 if there is no filemeta below the node
+	 */
+	long getHash(int level, int prefix) {
+		checkNode(level, prefix);
+		return levels[level].get(prefix);
+	}
+
+	/**
+	 * Gives the hashes of the children of a node.
+	 * @param level the level of the node, below {@link #DEPTH}
+	 * @param prefix
+	 * @return the {@link #FANOUT} hashes, in the order of their digit
+	 */
+	long[] getChildren(int level, int prefix) {
+		checkNode(level, prefix);
+		if (level >= DEPTH) {
+			throw new IllegalArgumentException("A leaf has no children");
+		}
+		long[] children = new long[FANOUT];
+		for (int digit = 0; digit < FANOUT; digit++) {
+			children[digit] = levels[level + 1].get(prefix * FANOUT + digit);
+		}
+		return children;
+	}
+
+	/**
+	 * Gives the node the id falls in at the given level.
+	 * @return the first level hex digits of the id
+	 */
+	static int prefix(UUID id, int level) {
+		return level == 0 ? 0 : (int) (id.getMostSignificantBits() >>> (64 - 4 * level));
+	}
+
+	/**
+	 * Checks if the node exists in the tree.
+	 * @throws IllegalArgumentException if it does not
+	 */
+	static void checkNode(int level, int prefix) {
+		if (level < 0 || level > DEPTH || prefix < 0 || prefix >= 1 << (4 * level)) {
+			throw new IllegalArgumentException("No tree node " + prefix + " at level " + level);
+		}
+	}
+
+	/**
+	 * The hash of a single filemeta: the first 8 bytes of the MD5 of its
+	 * encoding.
+	 */
+	private static long hash(FileMeta meta) {
+		if (meta == null) {
+			return 0;
+		}
+		byte[] digest = Utilities.createChecksumDigest().digest(FileMetaCodec.encode(meta));
+		long hash = 0;
+		for (int i = 0; i < 8; i++) {
+			hash = (hash << 8) | (digest[i] & 0xff);
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,43 @@
+package nl.vu.ict4d.marle.archive;
+
+import java.io.IOException;
+
+import nl.vu.ict4d.marle.server.util.Settings;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Walks the archive now and then to correct the space it is known to use,
+ * for example after files were changed outside the server.
+ */
+public class UsageReconciler extends Thread {
+
+	private static final Logger logger = Logger.getLogger("MarleLogger");
+	private final Archive archive;
+
+	public UsageReconciler(Archive archive) {
+		super("MARLE USAGE");
+		this.archive = archive;
+		setDaemon(true);
+	}
+
+	@Override
+	@SuppressWarnings("SleepWhileInLoop")
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(Settings.ARCHIVE_USAGE_INTERVAL);
+				archive.reconcileUsage();
+			} catch (InterruptedException ie) {
+				logger.info("Usage reconciler interrupted, walking the archive now.");
+				try {
+					archive.reconcileUsage();
+				} catch (IOException ex) {
+					logger.error("Could not determine the space used by the archive.", ex);
+				}
+			} catch (IOException | RuntimeException ex) {
+				logger.error("Could not determine the space used by the archive.", ex);
+			}
+		}
+	}
+}
@@ -9,10 +9,16 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
 import nl.vu.ict4d.marle.archive.Archive;
+import nl.vu.ict4d.marle.archive.UsageReconciler;
+import nl.vu.ict4d.marle.server.data.PeerConnectionPool;
 import nl.vu.ict4d.marle.server.data.ServerSocketThread;
+import nl.vu.ict4d.marle.server.data.sync.FanoutDispatcher;
 import nl.vu.ict4d.marle.server.data.sync.FileReplicator;
+import nl.vu.ict4d.marle.server.data.sync.MetaSynchronizer;
 import nl.vu.ict4d.marle.server.data.sync.ReplicateStack;
+import nl.vu.ict4d.marle.server.data.sync.ReplicationReconciler;
 import nl.vu.ict4d.marle.server.multicast.NetworkThread;
+import nl.vu.ict4d.marle.server.multicast.NodeMembership;
 import nl.vu.ict4d.marle.server.multicast.NodeSpotter;
 import nl.vu.ict4d.marle.server.multicast.ServerNode;
 import org.apache.log4j.Logger;
@@ -23,12 +29,20 @@ import org.apache.log4j.PropertyConfigurator;
  */
 public class App implements MarleManager {
 
+    /** The journal of the replication stack, kept in the archive folder. */
+    private static final String REPLICATION_JOURNAL = "Replicate.log";
     private static Logger logger; // Created in startup method!
     private ReplicateStack replicatestack;
     private ServerSocketThread serversocket;
     private FileReplicator replicator;
+    private ReplicationReconciler reconciler;
+    private UsageReconciler usagereconciler;
+    private MetaSynchronizer metasynchronizer;
     private NetworkThread networkthread;
     private Archive archive;
+    private PeerConnectionPool connectionpool;
+    private NodeMembership membership;
+    private FanoutDispatcher dispatcher;
     private UUID serverid;
 
     public App() {
@@ -83,7 +97,15 @@ public class App implements MarleManager {
             logger.info("Could not load the archive.");
         }
 
-        this.replicatestack = new ReplicateStack();
+        try {
+            // Files that were waiting for replication before a restart are picked up again
+            this.replicatestack = new ReplicateStack(archive.getArchPath().resolve(REPLICATION_JOURNAL));
+        } catch (IOException ex) {
+            logger.error("Could not load the replication journal, files waiting for replication are lost.", ex);
+            this.replicatestack = new ReplicateStack();
+        }
+        this.connectionpool = new PeerConnectionPool();
+        this.dispatcher = new FanoutDispatcher(connectionpool);
 
         // =====================================
         // Neightbourhood scan (just to inform what is in the network)
@@ -93,6 +115,9 @@ public class App implements MarleManager {
             logger.info("Quick network scan..");
             Map<InetAddress, ServerNode> addresses = new NodeSpotter(5000).findNodes();
             logger.info("Found " + addresses.size() + " nodes in the network.");
+
+            membership = new NodeMembership();
+            membership.update(addresses);
         } catch (IOException ex) {
             logger.fatal("Could not scan the network.", ex);
             System.exit(502);
@@ -113,6 +138,12 @@ public class App implements MarleManager {
             return;
         }
 
+        // =====================================
+        // Start the membership thread (keeps the view of the network fresh)
+        // =====================================
+        logger.info("Starting membership refresher..");
+        membership.start();
+
         // =====================================
         // Start the Socket thread (Data transfers)
         // =====================================
@@ -127,6 +158,27 @@ public class App implements MarleManager {
         replicator = new FileReplicator(this);
         replicator.start();
 
+        // =====================================
+        // Starting replication reconciler (repairs lost copies)
+        // =====================================
+        logger.info("Starting replication reconciler..");
+        reconciler = new ReplicationReconciler(this);
+        reconciler.start();
+
+        // =====================================
+        // Starting archive usage reconciler (corrects the used space)
+        // =====================================
+        logger.info("Starting archive usage reconciler..");
+        usagereconciler = new UsageReconciler(archive);
+        usagereconciler.start();
+
+        // =====================================
+        // Starting meta synchronizer (fetches missed filemeta changes)
+        // =====================================
+        logger.info("Starting meta synchronizer..");
+        metasynchronizer = new MetaSynchronizer(this);
+        metasynchronizer.start();
+
         // =====================================
         // Update?
         // =====================================
@@ -217,4 +269,28 @@ public class App implements MarleManager {
     public FileReplicator getReplicator() {
         return replicator;
     }
+
+    /**
+     * The pool with open connections to other servers.
+     */
+    @Override
+    public PeerConnectionPool getConnectionPool() {
+        return connectionpool;
+    }
+
+    /**
+     * The view of the other server nodes in the network.
+     */
+    @Override
+    public NodeMembership getMembership() {
+        return membership;
+    }
+
+    /**
+     * The dispatcher that sends requests to all other servers at once.
+     */
+    @Override
+    public FanoutDispatcher getFanoutDispatcher() {
+        return dispatcher;
+    }
 }
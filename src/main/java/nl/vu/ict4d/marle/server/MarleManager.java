@@ -2,10 +2,13 @@ package nl.vu.ict4d.marle.server;
 
 import java.util.UUID;
 import nl.vu.ict4d.marle.archive.Archive;
+import nl.vu.ict4d.marle.server.data.PeerConnectionPool;
 import nl.vu.ict4d.marle.server.data.ServerSocketThread;
+import nl.vu.ict4d.marle.server.data.sync.FanoutDispatcher;
 import nl.vu.ict4d.marle.server.data.sync.FileReplicator;
 import nl.vu.ict4d.marle.server.data.sync.ReplicateStack;
 import nl.vu.ict4d.marle.server.multicast.NetworkThread;
+import nl.vu.ict4d.marle.server.multicast.NodeMembership;
 
 /**
  * Small interface for the class that is managing the items running in the background.
@@ -43,4 +46,19 @@ public interface MarleManager {
      * The filereplicator responsible for replicating files to other servers.
      */
     FileReplicator getReplicator();
+
+    /**
+     * The pool with open connections to other servers.
+     */
+    PeerConnectionPool getConnectionPool();
+
+    /**
+     * The view of the other server nodes in the network.
+     */
+    NodeMembership getMembership();
+
+    /**
+     * The dispatcher that sends requests to all other servers at once.
+     */
+    FanoutDispatcher getFanoutDispatcher();
 }
@@ -2,18 +2,45 @@ package nl.vu.ict4d.marle.server.data;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import nl.vu.ict4d.marle.archive.Archive;
+import nl.vu.ict4d.marle.archive.Chunk;
 import nl.vu.ict4d.marle.server.file.FileMeta;
+import nl.vu.ict4d.marle.server.file.FileMetaCodec;
+import nl.vu.ict4d.marle.server.util.Settings;
 import nl.vu.ict4d.marle.server.util.Utilities;
 import org.apache.log4j.Logger;
 import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ContentHandler;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
@@ -26,8 +53,17 @@ public class ClientSocket {
     private static final Logger logger = Logger.getLogger("MarleLogger");
     private static final int SERVER_DATA_SOCKET = 12333;
     private static final int BUFFER_SIZE = 16000;
+    /**
+     * Servers that did not answer {@link ConnectionMessages#SERVER_META_VERSION}, only JSON is
+     * used with them until the time (ms) they are mapped to.
+     */
+    private static final ConcurrentMap<InetAddress, Long> legacyHosts = new ConcurrentHashMap<>();
     private final boolean isServer;
     private Socket socket;
+    /** The filemeta encoding agreed on with the connected server. */
+    private short metaVersion = FileMeta.META_VERSION;
+    /** TRUE if the connected server does not know the requests added with the filemeta encoding. */
+    private boolean legacy = false;
 
     /**
      * Creates a new client socket in CLIENT connection mode
@@ -58,7 +94,8 @@ public class ClientSocket {
         }
 
         logger.debug("Connecting to " + host.getHostAddress());
-        socket = new Socket(host, SERVER_DATA_SOCKET);
+        // Open through a channel, so files can be send without copying them
+        socket = SocketChannel.open(new InetSocketAddress(host, SERVER_DATA_SOCKET)).socket();
 
         // Read the response
         byte[] buffer = new byte[20];
@@ -72,6 +109,12 @@ public class ClientSocket {
             // Write if this is a server or client
             socket.getOutputStream().write(isServer ? 1 : 0);
             socket.getOutputStream().flush();
+
+            metaVersion = FileMeta.META_VERSION;
+            legacy = isLegacyHost(host);
+            if (!legacy) {
+                return negotiateMetaVersion(host);
+            }
             return true;
         } else {
             logger.debug("Server connection rejected!");
@@ -81,6 +124,107 @@ public class ClientSocket {
         }
     }
 
+    /**
+     * Checks if the server did not answer on the filemeta encoding recently.
+     */
+    private static boolean isLegacyHost(InetAddress host) {
+        Long until = legacyHosts.get(host);
+        if (until == null) {
+            return false;
+        }
+        if (until > System.currentTimeMillis()) {
+            return true;
+        }
+        // Ask again, the server may have been upgraded
+        legacyHosts.remove(host, until);
+        return false;
+    }
+
+    /**
+     * Agrees with the server on the filemeta encoding, the binary encoding
+     * is used if the server knows it. A server that does not know the
+     * request never answers it (or closes the connection), so the answer is
+     * only waited for a short while. The connection is then opened again
+     * using JSON, as the server may have taken the rest of the request for
+     * a next one, and the server is only sent JSON for
+     * {@link Settings#META_LEGACY_RETRY} ms. A connection that breaks in
+     * another way does not mark the server.
+     */
+    private boolean negotiateMetaVersion(InetAddress host) throws IOException {
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        output.write(ConnectionMessages.SERVER_META_VERSION.getBytes());
+        output.writeShort(FileMetaCodec.VERSION);
+        output.flush();
+
+        int timeout = socket.getSoTimeout();
+        try {
+            socket.setSoTimeout(Settings.META_HANDSHAKE_TIMEOUT);
+            metaVersion = new DataInputStream(socket.getInputStream()).readShort();
+            socket.setSoTimeout(timeout);
+            logger.debug("Using filemeta version " + metaVersion);
+            return true;
+        } catch (EOFException | SocketTimeoutException ex) {
+            logger.debug("Server " + host.getHostAddress() + " only knows JSON filemeta, reconnecting.");
+            legacyHosts.put(host, System.currentTimeMillis() + Settings.META_LEGACY_RETRY);
+            closeConnection();
+            return openConnection(host);
+        } catch (IOException ex) {
+            closeConnection();
+            throw ex;
+        }
+    }
+
+    /**
+     * Encodes filemeta in the encoding agreed on with the server.
+     */
+    private byte[] encodeMeta(FileMeta meta) {
+        if (metaVersion >= FileMetaCodec.VERSION) {
+            return FileMetaCodec.encode(meta);
+        }
+        return meta.toJSON().toJSONString().getBytes();
+    }
+
+    /**
+     * Checks if the connection is still open and can be used for a new request. The server
+     * never sends anything unasked, so if data is waiting or the server closed the connection
+     * it can not be used anymore.
+     *
+     * @return true if the connection can be used
+     */
+    public boolean isHealthy() {
+        if (socket == null || socket.isClosed() || !socket.isConnected()) {
+            return false;
+        }
+
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) {
+            return true;
+        }
+        try {
+            channel.configureBlocking(false);
+            try {
+                return channel.read(ByteBuffer.allocate(1)) == 0;
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Sets how long reads on the connection may block before they fail.
+     *
+     * @param timeout the timeout in ms, 0 to wait forever
+     * @throws IOException
+     */
+    public void setTimeout(int timeout) throws IOException {
+        if (socket == null) {
+            throw new IllegalStateException("No open connection!");
+        }
+        socket.setSoTimeout(timeout);
+    }
+
     /**
      * Closes the connection to the connected server
      */
@@ -97,10 +241,24 @@ public class ClientSocket {
     }
 
     /**
-     * This method will request a file from the connected server
+     * Receives the filemeta objects of a meta stream, one at a time.
+     */
+    public interface MetaReceiver {
+
+        /**
+         * Called for every filemeta object, in the order they are received.
+         * @param meta
+         * @throws IOException to stop the stream, the connection is then unusable
+         */
+        void receive(FileMeta meta) throws IOException;
+    }
+
+    /**
+     * Requests all filemeta of the connected server. The meta is parsed
+     * straight from the connection, it is not buffered first.
      *
-     * @param fileID
-     * @param stream
+     * @return the filemeta objects as JSON, or null if the server could not
+     * send them
      * @throws IOException
      */
     public JSONArray requestMeta() throws IOException {
@@ -121,60 +279,503 @@ public class ClientSocket {
 
             // Get the total file size first
             byte[] buffer = new byte[8];
-            socket.getInputStream().read(buffer);
-
-            // TODO: Fix so we can read larger files..
-            long filesize = Math.min(Utilities.bytesToLong(buffer), (long) Integer.MAX_VALUE);
+            FileTransfer.readFully(socket.getInputStream(), buffer);
+            long filesize = Utilities.bytesToLong(buffer);
             logger.debug(" Filesize: " + filesize);
 
-            // Resize buffer
-            buffer = new byte[BUFFER_SIZE];
-            int length, readBytes;
-
-            OutputStream stream = null;
-            ByteArrayOutputStream baos = null;
-            try {
-                baos = new ByteArrayOutputStream((int) filesize);
-                stream = new BufferedOutputStream(baos);
-
-                // Loop till entire file received
-                while (filesize > 0) {
-                    length = (int) Math.min(filesize, (long) BUFFER_SIZE);
-
-                    // Read/write the data
-                    readBytes = socket.getInputStream().read(buffer, 0, length);
-
-                    // Use the readBytes from hereon (this can differ!)
-                    stream.write(buffer, 0, readBytes);
-                    stream.flush();
-
-                    filesize -= readBytes;
+            // Closing the content skips what was not read, so the connection stays usable
+            try (FileTransfer.BoundedInputStream content = new FileTransfer.BoundedInputStream(socket.getInputStream(), filesize)) {
+                if (metaVersion >= FileMetaCodec.VERSION) {
+                    // Keep the result the same for both encodings
+                    JSONArray contentFile = readMetaRecords(new DataInputStream(new BufferedInputStream(content, BUFFER_SIZE)));
+                    logger.debug(" File transfer complete!");
+                    return contentFile;
                 }
-
                 try {
-                    JSONArray contentFile = (JSONArray) new JSONParser().parse(new String(baos.toByteArray()));
+                    JSONArray contentFile = (JSONArray) new JSONParser().parse(
+                            new BufferedReader(new InputStreamReader(content), BUFFER_SIZE));
                     logger.debug(" File transfer complete!");
                     return contentFile;
                 } catch (ParseException pe) {
                     logger.fatal("Could not decode the filemeta object!");
                     return null;
                 }
-            } finally {
-                try {
-                    if (stream != null)
-                        stream.close();
-                } catch (IOException ex) {
+            }
+        } else {
+            logger.error("Server gave an invalid response...!");
+            return null;
+        }
+    }
+
+    /**
+     * Reads the binary encoded filemeta into a JSON array, a count followed by
+     * the records.
+     */
+    // JSONArray is a raw ArrayList, its elements can not be typed
+    @SuppressWarnings("unchecked")
+    private static JSONArray readMetaRecords(DataInputStream records) throws IOException {
+        int count = records.readInt();
+        JSONArray contentFile = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            contentFile.add(FileMetaCodec.read(records).toJSON());
+        }
+        return contentFile;
+    }
+
+    /**
+     * Requests all filemeta of the connected server as a stream. Every
+     * object is handed to the receiver as soon as it arrived, the memory
+     * used does not depend on the amount of filemeta. Objects that can not
+     * be decoded are skipped.
+     *
+     * @param receiver
+     * @return the amount of filemeta objects received, or -1 if the server
+     * could not send them
+     * @throws IOException
+     */
+    public int requestMetaStream(MetaReceiver receiver) throws IOException {
+        if (socket == null) {
+            throw new IllegalStateException("No open connection!");
+        }
+        if (legacy) {
+            // Does not know the stream request either
+            return requestMetaArray(receiver);
+        }
+
+        logger.debug("Requesting meta stream");
+        socket.getOutputStream().write(ConnectionMessages.SERVER_META_STREAM.getBytes());
+        socket.getOutputStream().flush();
+
+        // The server sends nothing after the end of the stream, so reading ahead is safe
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        int response = input.read();
+        if (response != ConnectionMessages.SERVER_FILEPULL_SENDING) {
+            logger.error("Server gave an invalid response...!");
+            return -1;
+        }
+        int count = receiveMetaRecords(input, receiver);
+        logger.debug(" Received " + count + " filemeta objects.");
+        return count;
+    }
+
+    /**
+     * Hands the filemeta objects send as their length followed by the
+     * encoded object to the receiver, until a length of 0. Objects that can
+     * not be decoded are skipped.
+     *
+     * @return the amount of filemeta objects received
+     */
+    private int receiveMetaRecords(DataInputStream input, MetaReceiver receiver) throws IOException {
+        int count = 0;
+        byte[] buffer = new byte[1024];
+        int length;
+        while ((length = input.readInt()) != 0) {
+            if (length < 0 || length > FileTransfer.MAX_CHUNK_SIZE) {
+                throw new IOException("Invalid filemeta length " + length);
+            }
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            input.readFully(buffer, 0, length);
+
+            FileMeta meta;
+            try {
+                if (metaVersion >= FileMetaCodec.VERSION) {
+                    meta = FileMetaCodec.read(new DataInputStream(new ByteArrayInputStream(buffer, 0, length)));
+                } else {
+                    meta = FileMeta.fromJSON((JSONObject) JSONValue.parse(new String(buffer, 0, length)));
                 }
+            } catch (IOException | java.text.ParseException | RuntimeException ex) {
+                logger.error("Could not decode a filemeta object, skipping it.", ex);
+                continue;
+            }
+            receiver.receive(meta);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Streams the filemeta from the JSON array send by a server that does
+     * not know the stream request. The array is parsed while it comes in,
+     * only a single object is kept at a time.
+     */
+    private int requestMetaArray(MetaReceiver receiver) throws IOException {
+        logger.debug("Requesting meta file as stream");
+        socket.getOutputStream().write(ConnectionMessages.SERVER_META_DOWNLOAD.getBytes());
+        socket.getOutputStream().flush();
+
+        int response = socket.getInputStream().read();
+        if (response != ConnectionMessages.SERVER_FILEPULL_SENDING) {
+            logger.error("Server gave an invalid response...!");
+            return -1;
+        }
+
+        byte[] buffer = new byte[8];
+        FileTransfer.readFully(socket.getInputStream(), buffer);
+        long filesize = Utilities.bytesToLong(buffer);
+
+        MetaArrayHandler handler = new MetaArrayHandler(receiver);
+        try (FileTransfer.BoundedInputStream content = new FileTransfer.BoundedInputStream(socket.getInputStream(), filesize)) {
+            new JSONParser().parse(new BufferedReader(new InputStreamReader(content), BUFFER_SIZE), handler);
+        } catch (ParseException pe) {
+            logger.fatal("Could not decode the filemeta objects!");
+        }
+        return handler.count;
+    }
+
+    /**
+     * Builds the objects of a JSON array of filemeta one at a time and hands
+     * them to the receiver.
+     */
+    private static class MetaArrayHandler implements ContentHandler {
+
+        private final MetaReceiver receiver;
+        /** The JSON values being built, the outer array is at the bottom. */
+        private final LinkedList<Object> values = new LinkedList<>();
+        private final LinkedList<String> keys = new LinkedList<>();
+        private int count = 0;
+
+        MetaArrayHandler(MetaReceiver receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public void startJSON() {
+        }
+
+        @Override
+        public void endJSON() {
+        }
+
+        @Override
+        public boolean startObject() {
+            values.push(new JSONObject());
+            return true;
+        }
+
+        @Override
+        public boolean endObject() throws IOException {
+            add(values.pop());
+            return true;
+        }
+
+        @Override
+        public boolean startObjectEntry(String key) {
+            keys.push(key);
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            return true;
+        }
+
+        @Override
+        public boolean startArray() {
+            values.push(new JSONArray());
+            return true;
+        }
+
+        @Override
+        public boolean endArray() throws IOException {
+            Object array = values.pop();
+            if (!values.isEmpty()) {
+                add(array);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean primitive(Object value) throws IOException {
+            add(value);
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void add(Object value) throws IOException {
+            if (values.size() == 1) {
+                // An element of the outer array
                 try {
-                    if (baos != null)
-                        baos.close();
-                } catch (IOException ex) {
+                    FileMeta meta = value instanceof JSONObject ? FileMeta.fromJSON((JSONObject) value) : null;
+                    if (meta != null) {
+                        receiver.receive(meta);
+                        count++;
+                    }
+                } catch (java.text.ParseException | RuntimeException ex) {
+                    logger.error("Could not decode a filemeta object, skipping it.", ex);
                 }
+            } else if (values.peek() instanceof JSONArray) {
+                ((JSONArray) values.peek()).add(value);
+            } else if (values.peek() instanceof JSONObject) {
+                ((JSONObject) values.peek()).put(keys.pop(), value);
             }
-        } else {
+        }
+    }
+
+    /**
+     * Receives the filemeta changes of a server, one at a time.
+     */
+    public interface ChangeReceiver {
+
+        /**
+         * Called for every changed filemeta.
+         * @param meta the current filemeta of the server
+         * @throws IOException to stop the changes, the connection is then unusable
+         */
+        void changed(FileMeta meta) throws IOException;
+
+        /**
+         * Called for every removed filemeta.
+         * @param fileid
+         * @param version the version of the removal
+         * @throws IOException to stop the changes, the connection is then unusable
+         */
+        void removed(UUID fileid, long version) throws IOException;
+    }
+
+    /**
+     * How far the changes of a server were received: the epoch of the server
+     * and the sequence number of the last change.
+     */
+    public static final class ChangeCursor {
+
+        /** The cursor for the first request, which receives all filemeta. */
+        public static final ChangeCursor START = new ChangeCursor(new UUID(0, 0), 0, false);
+
+        private final UUID epoch;
+        private final long sequence;
+        private final boolean complete;
+
+        public ChangeCursor(UUID epoch, long sequence, boolean complete) {
+            this.epoch = epoch;
+            this.sequence = sequence;
+            this.complete = complete;
+        }
+
+        public UUID getEpoch() {
+            return epoch;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return true if all changes were received, false if the server
+         * stopped early and more changes can be requested right away
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    /**
+     * Requests the filemeta that changed since the given cursor. When the
+     * server restarted since the cursor was received, all its filemeta is
+     * received again.
+     *
+     * @param cursor the cursor of the previous request, or
+     * {@link ChangeCursor#START}
+     * @param receiver
+     * @return the cursor to request the next changes with, or null if the
+     * server does not know the request
+     * @throws IOException
+     */
+    public ChangeCursor requestMetaChanges(ChangeCursor cursor, ChangeReceiver receiver) throws IOException {
+        if (socket == null) {
+            throw new IllegalStateException("No open connection!");
+        }
+        if (legacy) {
+            return null;
+        }
+
+        logger.debug("Requesting meta changes since " + cursor.getSequence());
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        output.write(ConnectionMessages.SERVER_META_CHANGES.getBytes());
+        output.write(cursor.getEpoch().toString().getBytes());
+        output.writeLong(cursor.getSequence());
+        output.flush();
+
+        // The server sends nothing after the end of the changes, so reading ahead is safe
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        if (input.read() != ConnectionMessages.SERVER_FILEPULL_SENDING) {
+            logger.error("Server gave an invalid response...!");
+            return null;
+        }
+        byte[] idBuffer = new byte[36];
+        input.readFully(idBuffer);
+        UUID epoch = UUID.fromString(new String(idBuffer));
+
+        int count = 0;
+        byte[] buffer = new byte[1024];
+        int type;
+        while ((type = input.readUnsignedByte()) != ConnectionMessages.SERVER_METACHANGE_END) {
+            if (type == ConnectionMessages.SERVER_METACHANGE_REMOVE) {
+                input.readFully(idBuffer);
+                receiver.removed(UUID.fromString(new String(idBuffer)), input.readLong());
+                count++;
+                continue;
+            }
+            if (type != ConnectionMessages.SERVER_METACHANGE_UPDATE) {
+                throw new IOException("Invalid change type " + type);
+            }
+            int length = input.readInt();
+            if (length < 0 || length > FileTransfer.MAX_CHUNK_SIZE) {
+                throw new IOException("Invalid filemeta length " + length);
+            }
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            input.readFully(buffer, 0, length);
+
+            FileMeta meta;
+            try {
+                if (metaVersion >= FileMetaCodec.VERSION) {
+                    meta = FileMetaCodec.read(new DataInputStream(new ByteArrayInputStream(buffer, 0, length)));
+                } else {
+                    meta = FileMeta.fromJSON((JSONObject) JSONValue.parse(new String(buffer, 0, length)));
+                }
+            } catch (IOException | java.text.ParseException | RuntimeException ex) {
+                logger.error("Could not decode a filemeta object, skipping it.", ex);
+                continue;
+            }
+            receiver.changed(meta);
+            count++;
+        }
+        long sequence = input.readLong();
+        boolean complete = input.readBoolean();
+        logger.debug(" Received " + count + " filemeta changes.");
+        return new ChangeCursor(epoch, sequence, complete);
+    }
+
+    /**
+     * The hashes of the children of nodes in the filemeta hash tree of a
+     * server, with the epoch and sequence number of the last change of the
+     * server that is in them.
+     */
+    public static final class TreeHashes {
+
+        private final UUID epoch;
+        private final long sequence;
+        private final long[][] children;
+
+        TreeHashes(UUID epoch, long sequence, long[][] children) {
+            this.epoch = epoch;
+            this.sequence = sequence;
+            this.children = children;
+        }
+
+        public UUID getEpoch() {
+            return epoch;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @param node the index of the node in the request
+         * @return the hashes of its children, in the order of their digit
+         */
+        public long[] getChildren(int node) {
+            return children[node];
+        }
+    }
+
+    /**
+     * Requests the hashes of the children of nodes in the filemeta hash tree
+     * (see {@link Archive#getMetaTreeChildren(int, int)}).
+     *
+     * @param level the level of the nodes, below the leaves
+     * @param prefixes the prefixes of the nodes
+     * @return the hashes, or null if the server does not know the request
+     * @throws IOException
+     */
+    public TreeHashes requestMetaTree(int level, List<Integer> prefixes) throws IOException {
+        if (socket == null) {
+            throw new IllegalStateException("No open connection!");
+        }
+        if (legacy) {
+            return null;
+        }
+
+        logger.debug("Requesting meta tree hashes of " + prefixes.size() + " nodes at level " + level);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        output.write(ConnectionMessages.SERVER_META_TREE.getBytes());
+        output.write(level);
+        writePrefixes(output, prefixes);
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        if (input.read() != ConnectionMessages.SERVER_FILEPULL_SENDING) {
             logger.error("Server gave an invalid response...!");
             return null;
         }
+        byte[] epoch = new byte[36];
+        input.readFully(epoch);
+        long sequence = input.readLong();
+        long[][] children = new long[prefixes.size()][Archive.META_TREE_FANOUT];
+        for (long[] hashes : children) {
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = input.readLong();
+            }
+        }
+        return new TreeHashes(UUID.fromString(new String(epoch)), sequence, children);
+    }
+
+    /**
+     * Requests the filemeta below leaves of the filemeta hash tree, and the
+     * removals of filemeta in the leaves the server still knows of.
+     *
+     * @param prefixes the prefixes of the leaves
+     * @param receiver
+     * @return the amount of filemeta objects and removals received, or -1 if
+     * the server could not send them
+     * @throws IOException
+     */
+    public int requestMetaBuckets(List<Integer> prefixes, final ChangeReceiver receiver) throws IOException {
+        if (socket == null) {
+            throw new IllegalStateException("No open connection!");
+        }
+        if (legacy) {
+            return -1;
+        }
+
+        logger.debug("Requesting the filemeta of " + prefixes.size() + " meta tree buckets");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        output.write(ConnectionMessages.SERVER_META_BUCKETS.getBytes());
+        writePrefixes(output, prefixes);
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        if (input.read() != ConnectionMessages.SERVER_FILEPULL_SENDING) {
+            logger.error("Server gave an invalid response...!");
+            return -1;
+        }
+        int count = receiveMetaRecords(input, new MetaReceiver() {
+            @Override
+            public void receive(FileMeta meta) throws IOException {
+                receiver.changed(meta);
+            }
+        });
+        int removals = input.readInt();
+        if (removals < 0) {
+            throw new IOException("Invalid amount of removals " + removals);
+        }
+        byte[] id = new byte[36];
+        for (int i = 0; i < removals; i++) {
+            input.readFully(id);
+            receiver.removed(UUID.fromString(new String(id)), input.readLong());
+        }
+        logger.debug(" Received " + count + " filemeta objects and " + removals + " removals.");
+        return count + removals;
+    }
+
+    private void writePrefixes(DataOutputStream output, List<Integer> prefixes) throws IOException {
+        output.writeInt(prefixes.size());
+        for (int prefix : prefixes) {
+            output.writeInt(prefix);
+        }
+        output.flush();
     }
 
     /**
@@ -237,6 +838,215 @@ public class ClientSocket {
         return false;
     }
 
+    /**
+     * Requests a file in checksummed chunks. If the target already holds the
+     * first part of the file (from a pull that broke off) only the rest is
+     * requested. When the connection breaks the target keeps all chunks that
+     * were received, so the pull can be resumed by calling this method again.
+     *
+     * The complete file is checked against the checksum the server sends. If
+     * the part the target held was of a different version of the file, the
+     * whole file is requested again.
+     *
+     * @param fileID
+     * @param target the file to write to
+     * @return true if the file is complete, false if the server does not have
+     * it
+     * @throws IOException if the transfer broke off, or the file received
+     * from the start does not match its checksum
+     */
+    public boolean requestFileResumable(UUID fileID, Path target) throws IOException {
+        if (socket == null) {
+            throw new IllegalStateException("No open connection!");
+        }
+
+        long offset = Files.exists(target) ? Files.size(target) : 0;
+        return requestFileResumable(fileID, target, offset);
+    }
+
+    private boolean requestFileResumable(UUID fileID, Path target, long offset) throws IOException {
+        logger.debug("Requesting file: " + fileID + " from byte " + offset);
+        OutputStream output = socket.getOutputStream();
+        output.write(ConnectionMessages.SERVER_FILE_RESUMABLE_PULL.getBytes());
+        output.write(fileID.toString().getBytes());
+        output.write(Utilities.longToBytes(offset));
+        output.flush();
+
+        int response = socket.getInputStream().read();
+
+        if (response == ConnectionMessages.SERVER_FILEPULL_SENDING) {
+            byte[] buffer = new byte[8];
+            FileTransfer.readFully(socket.getInputStream(), buffer);
+            long filesize = Utilities.bytesToLong(buffer);
+            // The server starts over if our part does not fit its file
+            FileTransfer.readFully(socket.getInputStream(), buffer);
+            offset = Utilities.bytesToLong(buffer);
+            byte[] checksum = new byte[Utilities.createChecksumDigest().getDigestLength()];
+            FileTransfer.readFully(socket.getInputStream(), checksum);
+            logger.debug(" Filesize: " + filesize + ", receiving from byte " + offset);
+
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                channel.truncate(offset);
+                channel.position(offset);
+                FileTransfer.receiveChunks(socket.getInputStream(), Channels.newOutputStream(channel), filesize - offset);
+            }
+
+            if (!Utilities.validateHash(Utilities.createChecksum(target.toFile()), checksum)) {
+                if (offset == 0) {
+                    throw new IOException("File " + fileID + " does not match its checksum.");
+                }
+                // The part we had was of another version of the file
+                logger.debug(" File does not match its checksum, receiving it again from the start.");
+                return requestFileResumable(fileID, target, 0);
+            }
+            logger.debug(" File transfer complete!");
+            return true;
+        } else if (response == ConnectionMessages.SERVER_FILEPULL_MISSING) {
+            logger.debug(" File was not found");
+        } else {
+            logger.error("Server gave an invalid response...!");
+        }
+        return false;
+    }
+
+    /**
+     * Receives the files of a batch pull, one at a time.
+     */
+    public interface FileReceiver {
+
+        /**
+         * Called for every file the server sends, in the order they were
+         * requested.
+         * @param fileid
+         * @param size the size of the file
+         * @param content the content of the file, the part that is not read
+         * is skipped
+         * @throws IOException to stop the batch, the connection is then unusable
+         */
+        void receive(UUID fileid, long size, InputStream content) throws IOException;
+    }
+
+    /**
+     * Requests a list of files. A single request is send for every
+     * {@link Settings#TRANSFER_BATCH_SIZE} files, the server sends the files
+     * of a request back to back.
+     *
+     * @param fileIDs
+     * @param receiver
+     * @return the ids of the files the server does not have
+     * @throws IOException
+     */
+    public List<UUID> requestFiles(List<UUID> fileIDs, FileReceiver receiver) throws IOException {
+        if (socket == null) {
+            throw new IllegalStateException("No open connection!");
+        }
+
+        List<UUID> missing = new ArrayList<>();
+        for (int start = 0; start < fileIDs.size(); start += Settings.TRANSFER_BATCH_SIZE) {
+            List<UUID> batch = fileIDs.subList(start, Math.min(fileIDs.size(), start + Settings.TRANSFER_BATCH_SIZE));
+            logger.debug("Requesting " + batch.size() + " files");
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            output.write(ConnectionMessages.SERVER_FILE_BATCH_PULL.getBytes());
+            output.writeInt(batch.size());
+            for (UUID fileID : batch) {
+                output.write(fileID.toString().getBytes());
+            }
+            output.flush();
+
+            // The server sends nothing after the last file, so reading ahead is safe
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            for (UUID fileID : batch) {
+                int response = input.read();
+                if (response == ConnectionMessages.SERVER_FILEPULL_MISSING) {
+                    missing.add(fileID);
+                    continue;
+                }
+                if (response != ConnectionMessages.SERVER_FILEPULL_SENDING) {
+                    throw new IOException("Server gave an invalid response " + response + " for file " + fileID);
+                }
+                long filesize = input.readLong();
+                try (FileTransfer.BoundedInputStream content = new FileTransfer.BoundedInputStream(input, filesize)) {
+                    receiver.receive(fileID, filesize, content);
+                }
+            }
+        }
+        logger.debug(" Received " + (fileIDs.size() - missing.size()) + " files, " + missing.size() + " missing.");
+        return missing;
+    }
+
+    /**
+     * Pushes a list of files. For every {@link Settings#TRANSFER_BATCH_SIZE}
+     * files the filemeta is send and answered at once, the accepted files are
+     * then send back to back without waiting for the answer on each file.
+     *
+     * @param files the filemeta of the files with the files themselves, send
+     * in the order of the map
+     * @return the ids of the files the server has now, because they were
+     * received or because the server already had them
+     * @throws IOException
+     */
+    public List<UUID> sendFiles(Map<FileMeta, File> files) throws IOException {
+        if (socket == null) {
+            throw new IllegalStateException("No open connection!");
+        }
+
+        List<Map.Entry<FileMeta, File>> entries = new ArrayList<>(files.entrySet());
+        List<UUID> stored = new ArrayList<>();
+        for (int start = 0; start < entries.size(); start += Settings.TRANSFER_BATCH_SIZE) {
+            List<Map.Entry<FileMeta, File>> batch = entries.subList(start, Math.min(entries.size(), start + Settings.TRANSFER_BATCH_SIZE));
+            logger.debug("Pushing " + batch.size() + " files");
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            output.write(ConnectionMessages.SERVER_FILE_BATCH_PUSH.getBytes());
+            output.writeInt(batch.size());
+            for (Map.Entry<FileMeta, File> entry : batch) {
+                byte[] encoded = encodeMeta(entry.getKey());
+                output.writeLong(encoded.length);
+                output.write(encoded);
+            }
+            output.flush();
+
+            byte[] statuses = new byte[batch.size()];
+            FileTransfer.readFully(socket.getInputStream(), statuses);
+            List<FileMeta> sent = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                FileMeta meta = batch.get(i).getKey();
+                if (statuses[i] == ConnectionMessages.SERVER_FILEPUSH_DUPELICATE) {
+                    stored.add(meta.getId());
+                } else if (statuses[i] == ConnectionMessages.SERVER_FILEPUSH_ACCEPT) {
+                    Path file = batch.get(i).getValue().toPath();
+                    long filesize = Files.size(file);
+                    if (filesize < BUFFER_SIZE) {
+                        // Small files go through the buffer, together with the next ones
+                        byte[] content = Files.readAllBytes(file);
+                        output.writeLong(content.length);
+                        output.write(content);
+                    } else {
+                        output.writeLong(filesize);
+                        output.flush();
+                        FileTransfer.send(socket, file, 0, filesize);
+                    }
+                    sent.add(meta);
+                } else {
+                    logger.error("Server refused file " + meta.getId() + " (" + statuses[i] + ")");
+                }
+            }
+            output.flush();
+
+            // The answers on the files, in the order they were send
+            byte[] acks = new byte[sent.size()];
+            FileTransfer.readFully(socket.getInputStream(), acks);
+            for (int i = 0; i < acks.length; i++) {
+                if (acks[i] == ConnectionMessages.SERVER_FILEPUSH_ACCEPT) {
+                    stored.add(sent.get(i).getId());
+                } else {
+                    logger.error("Server could not store file " + sent.get(i).getId());
+                }
+            }
+        }
+        logger.debug(" " + stored.size() + " of " + files.size() + " files stored.");
+        return stored;
+    }
+
     /**
      * This method will push a file to the connected server.
      *
@@ -257,7 +1067,7 @@ public class ClientSocket {
         socket.getOutputStream().flush();
 
         // Push the meta (size (as long) - date itself)
-        byte[] jsonobj = meta.toJSON().toJSONString().getBytes();
+        byte[] jsonobj = encodeMeta(meta);
         byte[] objsizebytes = Utilities.longToBytes((long) jsonobj.length);
 
         socket.getOutputStream().write(objsizebytes);
@@ -283,39 +1093,133 @@ public class ClientSocket {
             output.write(Utilities.longToBytes(filesize));
             output.flush();
 
-            // Prepare databuff
-            byte[] bytearray = new byte[BUFFER_SIZE];
+            FileTransfer.send(socket, file.toPath(), 0, filesize);
+            logger.debug(" File transfer complete!");
+            return true;
+        } else if (response == ConnectionMessages.SERVER_FILEPUSH_DUPELICATE) {
+            logger.debug(" File is a duplicate of an existing file!");
+            return true;
+        } else if (response == ConnectionMessages.SERVER_FILEPUSH_NOFREESPACE) {
+            logger.debug(" Server has no free space");
+        } else {
+            logger.error("Server gave an invalid response...!");
+        }
+        return false;
+    }
 
-            FileInputStream fin = null;
-            BufferedInputStream bin = null;
-            try {
-                // load the file into the databuffer array
-                fin = new FileInputStream(file);
-                bin = new BufferedInputStream(fin);
-
-                // Sending the data in chunks
-                int length;
-                while ((length = bin.read(bytearray)) != -1) {
-                    output.write(bytearray, 0, length);
-                    output.flush();
-                }
-                logger.debug("File transfer complete!");
-            } finally {
-                try {
-                    if (fin != null) {
-                        fin.close();
-                    }
-                } catch (IOException ex) {
-                }
-                try {
-                    if (bin != null) {
-                        bin.close();
-                    }
-                } catch (IOException ex) {
-                }
+    /**
+     * Pushes a file to the connected server in checksummed chunks. The server
+     * tells how much of the file it already received in an earlier push that
+     * broke off, only the rest is send.
+     *
+     * @param meta details about the file
+     * @param file
+     * @return true if the server has the complete file (checksum validated)
+     * @throws IOException if the transfer broke off, calling this method again
+     * continues the push
+     */
+    public boolean sendFileResumable(FileMeta meta, File file) throws IOException {
+        if (socket == null) {
+            throw new IllegalStateException("No open connection!");
+        }
+
+        logger.debug("Pushing file: " + meta.getId());
+        OutputStream output = socket.getOutputStream();
+        output.write(ConnectionMessages.SERVER_FILE_RESUMABLE_PUSH.getBytes());
+
+        // Push the meta (size (as long) - date itself)
+        byte[] jsonobj = encodeMeta(meta);
+        output.write(Utilities.longToBytes((long) jsonobj.length));
+        output.write(jsonobj);
+        output.flush();
+
+        int response = socket.getInputStream().read();
+
+        if (response == ConnectionMessages.SERVER_FILEPUSH_ACCEPT) {
+            long filesize = file.length();
+            output.write(Utilities.longToBytes(filesize));
+            output.flush();
+
+            // The amount of bytes the server already has
+            byte[] buffer = new byte[8];
+            FileTransfer.readFully(socket.getInputStream(), buffer);
+            long offset = Utilities.bytesToLong(buffer);
+            logger.debug(" bytes to transfer: " + (filesize - offset) + " of " + filesize);
+
+            FileTransfer.sendChunks(socket, file.toPath(), offset, filesize - offset);
+
+            response = socket.getInputStream().read();
+            if (response == ConnectionMessages.SERVER_FILEPUSH_ACCEPT) {
+                logger.debug(" File transfer complete!");
+                return true;
             }
-            logger.debug(" File transfer complete!");
+            logger.error("Server rejected the pushed file.");
+        } else if (response == ConnectionMessages.SERVER_FILEPUSH_DUPELICATE) {
+            logger.debug(" File is a duplicate of an existing file!");
             return true;
+        } else if (response == ConnectionMessages.SERVER_FILEPUSH_NOFREESPACE) {
+            logger.debug(" Server has no free space");
+        } else {
+            logger.error("Server gave an invalid response...!");
+        }
+        return false;
+    }
+
+    /**
+     * Pushes a chunked file to the connected server. The server is told which
+     * chunks make up the file and only the chunks it does not have yet are
+     * send.
+     *
+     * @param meta details about the file
+     * @param archive the archive that has the chunks of the file
+     * @return true if the server has the complete file (checksum validated)
+     * @throws IOException
+     */
+    public boolean sendFileChunks(FileMeta meta, Archive archive) throws IOException {
+        if (socket == null) {
+            throw new IllegalStateException("No open connection!");
+        }
+
+        logger.debug("Pushing chunked file: " + meta.getId());
+        List<Chunk> chunks = archive.getManifest(meta.getId());
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        output.write(ConnectionMessages.SERVER_FILE_CHUNKED_PUSH.getBytes());
+
+        // Push the meta (size (as long) - date itself)
+        byte[] jsonobj = encodeMeta(meta);
+        output.write(Utilities.longToBytes((long) jsonobj.length));
+        output.write(jsonobj);
+
+        // Push the chunk list
+        output.writeInt(chunks.size());
+        for (Chunk chunk : chunks) {
+            output.write(chunk.getHash().getBytes("US-ASCII"));
+            output.writeInt(chunk.getLength());
+        }
+        output.flush();
+
+        int response = input.read();
+
+        if (response == ConnectionMessages.SERVER_FILEPUSH_ACCEPT) {
+            int count = input.readInt();
+            int[] missing = new int[count];
+            for (int i = 0; i < count; i++) {
+                missing[i] = input.readInt();
+            }
+            logger.debug(" chunks to transfer: " + count + " of " + chunks.size());
+
+            for (int index : missing) {
+                output.write(archive.readChunk(chunks.get(index).getHash()));
+            }
+            output.flush();
+
+            response = input.read();
+            if (response == ConnectionMessages.SERVER_FILEPUSH_ACCEPT) {
+                logger.debug(" File transfer complete!");
+                return true;
+            }
+            logger.error("Server rejected the pushed file.");
         } else if (response == ConnectionMessages.SERVER_FILEPUSH_DUPELICATE) {
             logger.debug(" File is a duplicate of an existing file!");
             return true;
@@ -359,6 +1263,44 @@ public class ClientSocket {
         return false;
     }
 
+    /**
+     * Sends the removal of a file by a client on to the connected server,
+     * with the version the removal got here. A server that does not know
+     * the request is sent a delete instead, which gives the removal its
+     * own version.
+     * @param fileID
+     * @param version the version of the removal
+     * @return true if the server removed the file
+     * @throws IOException
+     */
+    public boolean removeMeta(UUID fileID, long version) throws IOException {
+        if (socket == null) {
+            throw new IllegalStateException("No open connection!");
+        }
+        if (legacy) {
+            return deleteFile(fileID);
+        }
+
+        logger.debug("Removing meta of " + fileID);
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        output.write(ConnectionMessages.SERVER_META_REMOVE.getBytes());
+        output.write(fileID.toString().getBytes());
+        output.writeLong(version);
+        output.flush();
+
+        int response = socket.getInputStream().read();
+
+        if (response == ConnectionMessages.SERVER_FILEDELETE_DELETED) {
+            logger.debug("File was deleted on server!");
+            return true;
+        } else if (response == ConnectionMessages.SERVER_FILEDELETE_MISSING) {
+            logger.debug("Server has no older copy of the file");
+        } else {
+            logger.error("Server gave an invalid response...!");
+        }
+        return false;
+    }
+
     /**
      * Sends a meta update to the given servernode
      * @param meta
@@ -375,7 +1317,7 @@ public class ClientSocket {
         socket.getOutputStream().write(buffer);
         socket.getOutputStream().flush();
 
-        buffer = meta.toJSON().toJSONString().getBytes();
+        buffer = encodeMeta(meta);
 
         // Write the filesize
         logger.debug(" Filesize: " + buffer.length);
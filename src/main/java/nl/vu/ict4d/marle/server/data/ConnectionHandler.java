@@ -1,24 +1,38 @@
 package nl.vu.ict4d.marle.server.data;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.text.ParseException;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import nl.vu.ict4d.marle.archive.Archive;
+import nl.vu.ict4d.marle.archive.Chunk;
+import nl.vu.ict4d.marle.archive.MetaChange;
+import nl.vu.ict4d.marle.server.data.sync.FanoutDispatcher;
+import nl.vu.ict4d.marle.server.data.sync.ReplicateStack;
 import nl.vu.ict4d.marle.server.file.FileMeta;
-import nl.vu.ict4d.marle.server.multicast.NodeSpotter;
-import nl.vu.ict4d.marle.server.multicast.ServerNode;
+import nl.vu.ict4d.marle.server.file.FileMetaCodec;
+import nl.vu.ict4d.marle.server.util.Settings;
 import nl.vu.ict4d.marle.server.util.Utilities;
 import org.apache.log4j.Logger;
 import org.apache.log4j.Priority;
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 
@@ -30,27 +44,19 @@ import org.json.simple.JSONValue;
 class ConnectionHandler implements Runnable {
 
     private static final Logger logger = Logger.getLogger("MarleLogger");
-    private static final int BUFFER_SIZE = 16000;
+    /** The amount of filemeta objects read from the archive at once when streaming them. */
+    private static final int META_SLICE = 1000;
     private ServerSocketThread parent;
-    private Thread self_thread;
     private Socket socket;
     private boolean connectedToServer = false;
-    private int id;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    /** The filemeta encoding used on this connection, JSON until the other side asks for more. */
+    private short metaVersion = FileMeta.META_VERSION;
 
-    ConnectionHandler(int id, ServerSocketThread parent) {
-        this.id = id;
+    ConnectionHandler(ServerSocketThread parent) {
         this.parent = parent;
     }
 
-    /**
-     * Gets the connection handler ID
-     *
-     * @return
-     */
-    public int getId() {
-        return id;
-    }
-
     /**
      * Makes the ConnectionHandler start handling the given connection
      */
@@ -60,17 +66,26 @@ class ConnectionHandler implements Runnable {
         }
 
         this.socket = socket;
-        self_thread = new Thread(this);
-        self_thread.start();
+        parent.getHandlerExecutor().execute(this);
     }
 
     /**
-     * Gets the hidden thread of this ConnectionHandler
+     * Attaches the connection to this handler without starting a thread for it. Used when the
+     * commands are read by a {@link DataReactor}, which will call
+     * {@link #handleRequest(String)} for each of them.
      *
-     * @return
+     * @param socket the connection, in blocking mode while a request is handled
+     * @param connectedToServer TRUE if the other side marked itself as a server node
      */
-    public Thread getThread() {
-        return self_thread;
+    void attach(Socket socket, boolean connectedToServer) {
+        if (this.socket != null) {
+            throw new IllegalArgumentException("This connectionhandler is already handling a connection!");
+        }
+
+        this.socket = socket;
+        this.connectedToServer = connectedToServer;
+        logger.debug("Start handling new connection from: " + socket.getInetAddress().getHostAddress()
+                + (connectedToServer ? " (servermode)" : " (clientmode)"));
     }
 
     @Override
@@ -93,28 +108,8 @@ class ConnectionHandler implements Runnable {
             while ((length = socket.getInputStream().read(buffer)) != -1) {
                 String requestString = new String(buffer, 0, length).trim();
 
-                switch (requestString) {
-                    case ConnectionMessages.SERVER_FILE_PULL:
-                        handleFilePullRequest();
-                        break;
-                    case ConnectionMessages.SERVER_FILE_PUSH:
-                        handleFilePushRequest();
-                        break;
-                    case ConnectionMessages.SERVER_FILE_DELETE:
-                        handleFileDeleteRequest();
-                        break;
-
-                    case ConnectionMessages.SERVER_META_DOWNLOAD:
-                        handleMetaDownload();
-                        break;
-                    case ConnectionMessages.SERVER_META_UPDATE:
-                        handleMetaUpdate();
-                        break;
-
-                    default:
-                        logger.error("Unknown request '" + requestString + "', closing connection.. ");
-                        break;
-
+                if (!handleRequest(requestString)) {
+                    break;
                 }
             }
             logger.debug("Handling finished, closing connection...");
@@ -123,44 +118,367 @@ class ConnectionHandler implements Runnable {
             // Special exception catcher, just to be sure
             logger.error("Handling the client connection went wrong. Outer exception handler reached!", ex);
         } finally {
-            try {
+            close();
+        }
+    }
+
+    /**
+     * Handles a single request on the connection.
+     *
+     * @param requestString the command that was send
+     * @return false if the request was unknown and the connection must be closed
+     * @throws IOException
+     */
+    boolean handleRequest(String requestString) throws IOException {
+        switch (requestString) {
+            case ConnectionMessages.SERVER_FILE_PULL:
+                handleFilePullRequest();
+                break;
+            case ConnectionMessages.SERVER_FILE_PUSH:
+                handleFilePushRequest();
+                break;
+            case ConnectionMessages.SERVER_FILE_RESUMABLE_PULL:
+                handleResumablePullRequest();
+                break;
+            case ConnectionMessages.SERVER_FILE_RESUMABLE_PUSH:
+                handleResumablePushRequest();
+                break;
+            case ConnectionMessages.SERVER_FILE_CHUNKED_PUSH:
+                handleChunkedPushRequest();
+                break;
+            case ConnectionMessages.SERVER_FILE_BATCH_PULL:
+                handleBatchPullRequest();
+                break;
+            case ConnectionMessages.SERVER_FILE_BATCH_PUSH:
+                handleBatchPushRequest();
+                break;
+            case ConnectionMessages.SERVER_FILE_DELETE:
+                handleFileDeleteRequest();
+                break;
+
+            case ConnectionMessages.SERVER_META_DOWNLOAD:
+                handleMetaDownload();
+                break;
+            case ConnectionMessages.SERVER_META_STREAM:
+                handleMetaStream();
+                break;
+            case ConnectionMessages.SERVER_META_CHANGES:
+                handleMetaChanges();
+                break;
+            case ConnectionMessages.SERVER_META_TREE:
+                handleMetaTree();
+                break;
+            case ConnectionMessages.SERVER_META_BUCKETS:
+                handleMetaBuckets();
+                break;
+            case ConnectionMessages.SERVER_META_UPDATE:
+                handleMetaUpdate();
+                break;
+            case ConnectionMessages.SERVER_META_REMOVE:
+                handleMetaRemove();
+                break;
+            case ConnectionMessages.SERVER_META_VERSION:
+                handleMetaVersion();
+                break;
+
+            default:
+                logger.error("Unknown request '" + requestString + "', closing connection.. ");
+                return false;
+
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the connection was closed, either by the handler or by the other side.
+     */
+    boolean isClosed() {
+        return socket == null || socket.isClosed();
+    }
+
+    /**
+     * Closes the connection and informs the socketthread.
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (socket != null) {
                 socket.close();
+            }
+        } catch (IOException ex) {
+            // ignore
+        }
+        parent.notifyDisconnect(this);
+    }
+
+    /**
+     * Agrees on the filemeta encoding. The other side sends the highest
+     * version it knows, the lowest of that and our own is used from now on
+     * and send back.
+     *
+     * @throws IOException
+     */
+    private void handleMetaVersion() throws IOException {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        short offered = input.readShort();
+        metaVersion = (short) Math.max(FileMeta.META_VERSION, Math.min(offered, FileMetaCodec.VERSION));
+        logger.debug("Using filemeta version " + metaVersion);
+
+        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+        output.writeShort(metaVersion);
+        output.flush();
+    }
+
+    /**
+     * Decodes filemeta in the encoding agreed on for this connection.
+     *
+     * @throws ParseException if the data is not valid filemeta
+     */
+    private FileMeta decodeMeta(byte[] data) throws ParseException {
+        if (metaVersion >= FileMetaCodec.VERSION) {
+            try {
+                return FileMetaCodec.decode(data);
             } catch (IOException ex) {
-                // ignore
+                throw new ParseException(ex.getMessage(), 0);
             }
-            parent.notifyDisconnect(this);
         }
+        return FileMeta.fromJSON((JSONObject) JSONValue.parse(new String(data)));
+    }
+
+    /**
+     * Encodes filemeta in the encoding agreed on for this connection.
+     */
+    private byte[] encodeMeta(FileMeta meta) {
+        if (metaVersion >= FileMetaCodec.VERSION) {
+            return FileMetaCodec.encode(meta);
+        }
+        return meta.toJSON().toJSONString().getBytes();
     }
 
     /**
-     * This is the handler for the request of the complete metafile collection
+     * This is the handler for the request of the complete metafile collection.
+     * The size of the collection is send first, so every object is encoded
+     * twice: once to count the bytes and once to send it. Only the list of
+     * objects is kept, never the encoded collection.
      */
     private void handleMetaDownload() throws IOException {
         logger.debug("Meta request");
 
-        try {
-            JSONArray contentfile = parent.getServermanager().getArchive().getContentFile();
+        List<FileMeta> metas = parent.getServermanager().getArchive().getFileMetaSnapshot();
+        boolean binary = metaVersion >= FileMetaCodec.VERSION;
 
-            // First mark that we are sending the file
-            socket.getOutputStream().write((byte) ConnectionMessages.SERVER_FILEPULL_SENDING);
-            socket.getOutputStream().flush();
+        // Binary: the amount of objects followed by the objects, JSON: [obj,obj]
+        long size = binary ? 4 : 2 + Math.max(0, metas.size() - 1);
+        for (FileMeta meta : metas) {
+            size += encodeMeta(meta).length;
+        }
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), FileTransfer.BUFFER_SIZE));
+        // First mark that we are sending the file
+        output.write((byte) ConnectionMessages.SERVER_FILEPULL_SENDING);
+        output.write(Utilities.longToBytes(size));
+        if (binary) {
+            output.writeInt(metas.size());
+        } else {
+            output.write('[');
+        }
+        boolean first = true;
+        for (FileMeta meta : metas) {
+            if (!binary && !first) {
+                output.write(',');
+            }
+            first = false;
+            output.write(encodeMeta(meta));
+        }
+        if (!binary) {
+            output.write(']');
+        }
+        output.flush();
+    }
 
-            // Push the meta (size (as long) - date itself)
-            byte[] jsonobj = contentfile.toJSONString().getBytes();
-            byte[] objsizebytes = Utilities.longToBytes((long) jsonobj.length);
+    /**
+     * Streams all filemeta. Every object is send as its length followed by
+     * the encoded object, a length of 0 ends the stream. The archive is
+     * walked in slices, so the memory used does not depend on the size of
+     * the archive. Objects that change during the walk are send in either
+     * their old or new version.
+     */
+    private void handleMetaStream() throws IOException {
+        logger.debug("Meta stream request");
 
-            socket.getOutputStream().write(objsizebytes);
-            socket.getOutputStream().flush();
+        Archive archive = parent.getServermanager().getArchive();
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), FileTransfer.BUFFER_SIZE));
+        output.write((byte) ConnectionMessages.SERVER_FILEPULL_SENDING);
 
-            socket.getOutputStream().write(jsonobj);
-            socket.getOutputStream().flush();
+        int count = 0;
+        List<UUID> slice = archive.getFileIds(null, META_SLICE);
+        while (!slice.isEmpty()) {
+            for (UUID fileid : slice) {
+                FileMeta meta = archive.getFileMeta(fileid);
+                if (meta != null) {
+                    byte[] record = encodeMeta(meta);
+                    output.writeInt(record.length);
+                    output.write(record);
+                    count++;
+                }
+            }
+            slice = archive.getFileIds(slice.get(slice.size() - 1), META_SLICE);
+        }
+        output.writeInt(0);
+        output.flush();
+        logger.debug(" " + count + " filemeta objects send.");
+    }
 
-        } catch (org.json.simple.parser.ParseException ex) {
-            logger.log(Priority.ERROR, "Could not load the content file for transfer!", ex);
-            socket.getOutputStream().write((byte) ConnectionMessages.SERVER_ERROR);
-            socket.getOutputStream().flush();
+    /**
+     * Sends the filemeta that changed since the last request of the other
+     * side. The other side sends the epoch and sequence number it got back
+     * last time; when that epoch is not ours, every filemeta is send. Every
+     * change is a type byte followed by the filemeta (length and encoded
+     * object) or by the id and version of a removal. The end is marked with
+     * the sequence number to ask from next time and if all changes were
+     * send, at most {@link Settings#META_SYNC_MAX_CHANGES} go in one answer.
+     */
+    private void handleMetaChanges() throws IOException {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        byte[] buffer = new byte[36];
+        input.readFully(buffer);
+        UUID epoch = UUID.fromString(new String(buffer));
+        long since = input.readLong();
+
+        Archive archive = parent.getServermanager().getArchive();
+        if (!archive.getMetaEpoch().equals(epoch)) {
+            // The numbers are from before a restart (or the first request)
+            since = 0;
+        } else {
+            // The removals it has are no longer needed for this server
+            archive.acknowledgeMetaChanges(socket.getInetAddress(), since);
+        }
+        logger.debug("Meta changes request since " + since);
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), FileTransfer.BUFFER_SIZE));
+        output.write((byte) ConnectionMessages.SERVER_FILEPULL_SENDING);
+        output.write(archive.getMetaEpoch().toString().getBytes());
+
+        int count = 0;
+        long cursor = since;
+        boolean complete = false;
+        while (!complete && count < Settings.META_SYNC_MAX_CHANGES) {
+            List<MetaChange> changes = archive.getMetaChanges(cursor, Math.min(META_SLICE, Settings.META_SYNC_MAX_CHANGES - count));
+            complete = changes.isEmpty();
+            for (MetaChange change : changes) {
+                cursor = change.getSequence();
+                if (change.isRemoval()) {
+                    output.write(ConnectionMessages.SERVER_METACHANGE_REMOVE);
+                    output.write(change.getId().toString().getBytes());
+                    output.writeLong(change.getVersion());
+                    count++;
+                    continue;
+                }
+                // Changed again since, then the current meta is send now and again later
+                FileMeta meta = archive.getFileMeta(change.getId());
+                if (meta != null) {
+                    byte[] record = encodeMeta(meta);
+                    output.write(ConnectionMessages.SERVER_METACHANGE_UPDATE);
+                    output.writeInt(record.length);
+                    output.write(record);
+                }
+                count++;
+            }
+        }
+        if (!complete) {
+            complete = archive.getMetaChanges(cursor, 1).isEmpty();
+        }
+        output.write(ConnectionMessages.SERVER_METACHANGE_END);
+        output.writeLong(cursor);
+        output.writeBoolean(complete);
+        output.flush();
+        logger.debug(" " + count + " filemeta changes send.");
+    }
+
+    /**
+     * Sends the hashes of the children of nodes in the filemeta hash tree.
+     * The other side sends the level of the nodes, their amount and their
+     * prefixes. The answer starts with the epoch and sequence number of the
+     * last change, taken before the hashes so all changes up to it are in
+     * them, followed by the hashes of the children of every node.
+     */
+    private void handleMetaTree() throws IOException {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        int level = input.readUnsignedByte();
+        ByteBuffer prefixes = readPrefixes(input, level);
+        logger.debug("Meta tree request for " + prefixes.remaining() / 4 + " nodes at level " + level);
+        if (level >= Archive.META_TREE_DEPTH) {
+            throw new IOException("Invalid tree level " + level);
         }
 
+        Archive archive = parent.getServermanager().getArchive();
+        UUID epoch = archive.getMetaEpoch();
+        long sequence = archive.getMetaSequence();
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), FileTransfer.BUFFER_SIZE));
+        output.write((byte) ConnectionMessages.SERVER_FILEPULL_SENDING);
+        output.write(epoch.toString().getBytes());
+        output.writeLong(sequence);
+        while (prefixes.hasRemaining()) {
+            for (long hash : archive.getMetaTreeChildren(level, prefixes.getInt())) {
+                output.writeLong(hash);
+            }
+        }
+        output.flush();
+    }
+
+    /**
+     * Sends the filemeta below leaves of the filemeta hash tree. The other
+     * side sends the amount of leaves and their prefixes, the filemeta is
+     * send as in {@link #handleMetaStream()}. It is followed by the amount of
+     * removals of filemeta in the leaves, and the id and version of each, as
+     * the tree only covers the filemeta that exists.
+     */
+    private void handleMetaBuckets() throws IOException {
+        ByteBuffer prefixes = readPrefixes(new DataInputStream(socket.getInputStream()), Archive.META_TREE_DEPTH);
+        logger.debug("Meta bucket request for " + prefixes.remaining() / 4 + " buckets");
+
+        Archive archive = parent.getServermanager().getArchive();
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), FileTransfer.BUFFER_SIZE));
+        output.write((byte) ConnectionMessages.SERVER_FILEPULL_SENDING);
+        int count = 0;
+        List<MetaChange> removals = new ArrayList<>();
+        while (prefixes.hasRemaining()) {
+            int prefix = prefixes.getInt();
+            for (FileMeta meta : archive.getFileMetaWithPrefix(Archive.META_TREE_DEPTH, prefix)) {
+                byte[] record = encodeMeta(meta);
+                output.writeInt(record.length);
+                output.write(record);
+                count++;
+            }
+            removals.addAll(archive.getRemovalsWithPrefix(Archive.META_TREE_DEPTH, prefix));
+        }
+        output.writeInt(0);
+        output.writeInt(removals.size());
+        for (MetaChange removal : removals) {
+            output.write(removal.getId().toString().getBytes());
+            output.writeLong(removal.getVersion());
+        }
+        output.flush();
+        logger.debug(" " + count + " filemeta objects and " + removals.size() + " removals send.");
+    }
+
+    /**
+     * Reads the amount of tree nodes and their prefixes in one go.
+     *
+     * @param level the level of the nodes, which limits their amount
+     * @throws IOException if there are more nodes than the level has
+     */
+    private ByteBuffer readPrefixes(DataInputStream input, int level) throws IOException {
+        int count = input.readInt();
+        if (count < 0 || count > 1 << (4 * Math.min(level, Archive.META_TREE_DEPTH))) {
+            throw new IOException("Invalid amount of tree nodes " + count);
+        }
+        byte[] prefixes = new byte[count * 4];
+        input.readFully(prefixes);
+        return ByteBuffer.wrap(prefixes);
     }
 
     /**
@@ -206,88 +524,160 @@ class ConnectionHandler implements Runnable {
         output.write(Utilities.longToBytes(filesize));
         output.flush();
 
-        // Prepare databuff
-        byte[] bytearray = new byte[BUFFER_SIZE];
-
-        InputStream fin = null;
-        BufferedInputStream bin = null;
-        try {
-            // load the file into the databuffer array
-            fin = parent.getServermanager().getArchive().getFile(fileid);
-            bin = new BufferedInputStream(fin);
-
-            // Sending the data in chunks
-            int length;
-            while ((length = bin.read(bytearray)) != -1) {
-                output.write(bytearray, 0, length);
-                output.flush();
+        Archive archive = parent.getServermanager().getArchive();
+        if (archive.isChunked(fileid)) {
+            try (InputStream stream = archive.getFile(fileid)) {
+                FileTransfer.copy(stream, output, filesize, null);
             }
+        } else {
+            FileTransfer.send(socket, archive.getFileObject(fileid).toPath(), 0, filesize);
+        }
+        logger.debug("File transfer complete!");
+    }
 
-            logger.debug("File transfer complete!");
-        } finally {
-            try {
-                if (fin != null) {
-                    fin.close();
-                }
-            } catch (IOException ex) {
+    /**
+     * The handler for requests of a list of files. The client sends the
+     * amount of files and their ids, the files are send back to back in the
+     * same order: a status byte, and for a found file its size and content.
+     * Small files are collected in the buffer, so a batch of small files
+     * takes few writes.
+     *
+     * @throws IOException
+     */
+    private void handleBatchPullRequest() throws IOException {
+        List<UUID> fileids = readBatchIds();
+        logger.debug("Batch pull request of " + fileids.size() + " files");
+
+        Archive archive = parent.getServermanager().getArchive();
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), FileTransfer.BUFFER_SIZE));
+        int sent = 0;
+        for (UUID fileid : fileids) {
+            if (!archive.hasFile(fileid)) {
+                output.write((byte) ConnectionMessages.SERVER_FILEPULL_MISSING);
+                continue;
             }
-            try {
-                if (bin != null) {
-                    bin.close();
+            output.write((byte) ConnectionMessages.SERVER_FILEPULL_SENDING);
+            long filesize = archive.getFileSize(fileid);
+            if (filesize < FileTransfer.BUFFER_SIZE) {
+                // The size is taken from the content, so the batch stays intact if the file changed
+                byte[] content = archive.getFileBytes(fileid);
+                output.write(Utilities.longToBytes(content.length));
+                output.write(content);
+            } else {
+                output.write(Utilities.longToBytes(filesize));
+                output.flush();
+                if (archive.isChunked(fileid)) {
+                    try (InputStream stream = archive.getFile(fileid)) {
+                        FileTransfer.copy(stream, output, filesize, null);
+                    }
+                } else {
+                    FileTransfer.send(socket, archive.getFileObject(fileid).toPath(), 0, filesize);
                 }
-            } catch (IOException ex) {
             }
+            sent++;
         }
+        output.flush();
+        logger.debug(" " + sent + " files send, " + (fileids.size() - sent) + " missing.");
     }
 
     /**
-     * This method will handle filepush requests send from its clients.
-     * It will automatically link it up to the data store and such.
+     * Reads the amount of files and their ids of a batch request.
      *
-     * @throws IOException
+     * @throws IOException if the batch is larger than allowed
      */
-    private void handleFilePushRequest() throws IOException {
-        logger.debug("File push request");
-
-        // Get the filemeta size
-        byte[] buffer = new byte[8];
-        socket.getInputStream().read(buffer);
-        // Can metafiles be larger than INT.MAXVALUE?
-        long filemetasize = Math.min(Utilities.bytesToLong(buffer), (long) Integer.MAX_VALUE);
+    private List<UUID> readBatchIds() throws IOException {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        int count = input.readInt();
+        if (count < 0 || count > Settings.TRANSFER_BATCH_SIZE) {
+            throw new IOException("Invalid batch size " + count);
+        }
+        byte[] buffer = new byte[count * 36];
+        input.readFully(buffer);
+        List<UUID> fileids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            fileids.add(UUID.fromString(new String(buffer, i * 36, 36)));
+        }
+        return fileids;
+    }
 
-        // Can be shrink this somehow?
-        buffer = new byte[(int) filemetasize];
-        socket.getInputStream().read(buffer);
+    /**
+     * The handler for resumable file requests. The client sends the offset
+     * to start from, the file is send from there in checksummed chunks. The
+     * checksum of the whole file is send first, so the client can find out
+     * if the part it already had was of a different version of the file.
+     *
+     * @throws IOException
+     */
+    private void handleResumablePullRequest() throws IOException {
+        logger.debug("Resumable file pull request");
 
-        JSONObject obj = (JSONObject) JSONValue.parse(new String(buffer));
         OutputStream output = socket.getOutputStream();
 
-        // Create the filemeta object!
-        FileMeta meta;
+        // Get the filename and offset
+        byte[] buffer = new byte[36];
+        FileTransfer.readFully(socket.getInputStream(), buffer);
+        UUID fileid = UUID.fromString(new String(buffer));
+        buffer = new byte[8];
+        FileTransfer.readFully(socket.getInputStream(), buffer);
+        long offset = Utilities.bytesToLong(buffer);
+
         try {
-            meta = FileMeta.fromJSON(obj);
-        } catch (ParseException ex) {
-            logger.fatal("Incorrect metadata send by client. Aborting..");
-            output.write((byte) ConnectionMessages.SERVER_ERROR);
+            parent.getServermanager().getArchive().checkIfExists(fileid);
+        } catch (NoSuchFileException nsfe) {
+            logger.debug("File was not found.");
+            output.write((byte) ConnectionMessages.SERVER_FILEPULL_MISSING);
+            output.flush();
             return;
         }
 
-        // TODO: Check in the data store here?
-        File transferFile = parent.getServermanager().getArchive().getFileObject(meta.getId());
+        long filesize = parent.getServermanager().getArchive().getFileSize(fileid);
+        if (offset < 0 || offset > filesize) {
+            // The client has a different version, start over
+            offset = 0;
+        }
+        byte[] checksum = parent.getServermanager().getArchive().getChecksum(fileid);
+        if (checksum == null) {
+            logger.debug("File was removed.");
+            output.write((byte) ConnectionMessages.SERVER_FILEPULL_MISSING);
+            output.flush();
+            return;
+        }
 
-        buffer = null;
-        // Calculate the checksum if the file already exists.
-        if (transferFile.exists()) {
-            try {
-                // Reuse buffer to hold the checksum
-                buffer = Utilities.createChecksum(transferFile);
-            } catch (Exception ex) {
-                logger.error("Could not calculate checksum, considering file invalid.");
+        output.write((byte) ConnectionMessages.SERVER_FILEPULL_SENDING);
+        // Write the filesize, the offset the data starts at and the checksum of the file
+        output.write(Utilities.longToBytes(filesize));
+        output.write(Utilities.longToBytes(offset));
+        output.write(checksum);
+        output.flush();
+        logger.debug(" bytes to transfer: " + (filesize - offset) + " of " + filesize);
+
+        Archive archive = parent.getServermanager().getArchive();
+        if (archive.isChunked(fileid)) {
+            try (InputStream stream = archive.getFile(fileid, offset)) {
+                FileTransfer.sendChunks(socket, stream, filesize - offset);
             }
+        } else {
+            FileTransfer.sendChunks(socket, archive.getFileObject(fileid).toPath(), offset, filesize - offset);
         }
+        logger.debug("File transfer complete!");
+    }
 
-        // No need to check for file exising here, buffer will be NULL so always invalid!
-        if (Utilities.validateHash(buffer, meta.getChecksum())) {
+    /**
+     * This method will handle filepush requests send from its clients.
+     * It will automatically link it up to the data store and such.
+     *
+     * @throws IOException
+     */
+    private void handleFilePushRequest() throws IOException {
+        logger.debug("File push request");
+
+        FileMeta meta = readPushedMeta();
+        if (meta == null) {
+            return;
+        }
+        OutputStream output = socket.getOutputStream();
+
+        if (isDuplicate(meta) || linkStoredCopy(meta)) {
             // Send response that server does not have that file
             logger.debug(" File already exists, aborting.");
 
@@ -304,76 +694,443 @@ class ConnectionHandler implements Runnable {
 
 
             // Get the file size
-            buffer = new byte[8];
-            socket.getInputStream().read(buffer);
+            byte[] buffer = new byte[8];
+            FileTransfer.readFully(socket.getInputStream(), buffer);
             long filesize = Utilities.bytesToLong(buffer);
             logger.debug(" bytes to transfer: " + filesize);
 
-            // Resize buffer
-            buffer = new byte[BUFFER_SIZE];
-            int length, readBytes;
-
-            ByteArrayOutputStream stream = null;
             try {
-                //stream = new FileOutputStream(transferFile);
+                receivePushedFile(meta, filesize);
+            } catch (IOException ex) {
+                logger.fatal("Error in receiving file from client!", ex);
+                // For a hard close (as the stream is now invalid!
+                socket.close();
+            }
+        }
+    }
 
-                // Currently we cannot handle this, disconnect!
-                if (filesize > (long) Integer.MAX_VALUE) {
-                    socket.close();
-                    return;
+    /**
+     * Receives the content of a pushed file and stores it with its meta, if
+     * the checksum of the content matches the meta.
+     *
+     * @param meta
+     * @param filesize the amount of bytes that is send
+     * @return false if the checksum did not match
+     * @throws IOException if the file could not be received, the stream is
+     * then invalid
+     */
+    private boolean receivePushedFile(FileMeta meta, long filesize) throws IOException {
+        Archive archive = parent.getServermanager().getArchive();
+        Path uploadFile = archive.createUploadFile(meta.getId());
+        boolean committed = false;
+        OutputStream stream = null;
+        try {
+            // Stream straight to disk, hashing while the data comes in
+            stream = Files.newOutputStream(uploadFile);
+            MessageDigest digest = Utilities.createChecksumDigest();
+            FileTransfer.copy(socket.getInputStream(), stream, filesize, digest);
+            stream.close();
+            stream = null;
+
+            byte[] checksum = digest.digest();
+            if (!Utilities.validateHash(checksum, meta.getChecksum())) {
+                logger.error("Checksum of received file '" + meta.getId() + "' does not match its meta, discarding file.");
+                return false;
+            }
+
+            archive.commitUpload(uploadFile, meta.getId(), checksum);
+            committed = true;
+
+            storePushedMeta(meta);
+            return true;
+        } finally {
+            if (stream != null)
+                try {
+                    stream.close();
+                } catch (IOException ex) {
+                    // ignore
                 }
+            if (!committed)
+                archive.discardUpload(uploadFile);
+        }
+    }
 
-                stream = new ByteArrayOutputStream((int) filesize);
+    /**
+     * The handler for pushes of a list of files. The client first sends the
+     * amount of files and their filemeta, which are answered together with a
+     * status byte per file. The client then sends the accepted files back to
+     * back as their size and content, without waiting for an answer: every
+     * file gets a status byte once it is stored, which the client reads
+     * after sending the last file.
+     *
+     * @throws IOException
+     */
+    private void handleBatchPushRequest() throws IOException {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        int count = input.readInt();
+        if (count < 0 || count > Settings.TRANSFER_BATCH_SIZE) {
+            throw new IOException("Invalid batch size " + count);
+        }
+        logger.debug("Batch push request of " + count + " files");
+
+        List<FileMeta> accepted = new ArrayList<>(count);
+        byte[] statuses = new byte[count];
+        for (int i = 0; i < count; i++) {
+            long filemetasize = input.readLong();
+            if (filemetasize < 0 || filemetasize > FileTransfer.MAX_CHUNK_SIZE) {
+                throw new IOException("Invalid filemeta length " + filemetasize);
+            }
+            byte[] buffer = new byte[(int) filemetasize];
+            input.readFully(buffer);
 
-                // Loop till entire file received
-                while (filesize > 0) {
-                    length = (int) Math.min(filesize, (long) BUFFER_SIZE);
+            FileMeta meta;
+            try {
+                meta = decodeMeta(buffer);
+            } catch (ParseException ex) {
+                logger.error("Incorrect metadata send by client, skipping file.");
+                statuses[i] = (byte) ConnectionMessages.SERVER_ERROR;
+                continue;
+            }
+            if (isDuplicate(meta) || linkStoredCopy(meta)) {
+                statuses[i] = (byte) ConnectionMessages.SERVER_FILEPUSH_DUPELICATE;
+            } else {
+                statuses[i] = (byte) ConnectionMessages.SERVER_FILEPUSH_ACCEPT;
+                accepted.add(meta);
+            }
+        }
+        socket.getOutputStream().write(statuses);
+        socket.getOutputStream().flush();
+        logger.debug(" " + accepted.size() + " files accepted.");
 
-                    // Read/write the data
-                    readBytes = socket.getInputStream().read(buffer, 0, length);
+        // The answers are only read at the end, there is no need to send them earlier
+        OutputStream output = new BufferedOutputStream(socket.getOutputStream(), FileTransfer.BUFFER_SIZE);
+        try {
+            for (FileMeta meta : accepted) {
+                long filesize = input.readLong();
+                boolean stored = receivePushedFile(meta, filesize);
+                output.write(stored ? ConnectionMessages.SERVER_FILEPUSH_ACCEPT : ConnectionMessages.SERVER_ERROR);
+            }
+            output.flush();
+        } catch (IOException ex) {
+            logger.fatal("Error in receiving file from client!", ex);
+            // For a hard close (as the stream is now invalid!
+            socket.close();
+        }
+    }
 
-                    // Use the readBytes from hereon (this can differ!)
-                    stream.write(buffer, 0, readBytes);
-                    stream.flush();
+    /**
+     * Handles a push that is send in checksummed chunks. The received chunks
+     * are kept when the connection breaks, the next push of the same file
+     * continues after the last complete chunk.
+     *
+     * @throws IOException
+     */
+    private void handleResumablePushRequest() throws IOException {
+        logger.debug("Resumable file push request");
 
-                    filesize -= readBytes;
-                }
+        FileMeta meta = readPushedMeta();
+        if (meta == null) {
+            return;
+        }
+        OutputStream output = socket.getOutputStream();
 
-                parent.getServermanager().getArchive().saveFile(meta.getId(), stream.toByteArray());
+        if (isDuplicate(meta) || linkStoredCopy(meta)) {
+            logger.debug(" File already exists, aborting.");
+            output.write((byte) ConnectionMessages.SERVER_FILEPUSH_DUPELICATE);
+            output.flush();
+            return;
+        }
 
-                // No sender, so new file from client
-                if (meta.getSenderIP().isEmpty()) {
-                    meta.setSenderIp(socket.getInetAddress().getHostAddress());
-                } else {
+        // Only one connection may add to the partial file
+        if (!parent.startResumableUpload(meta.getId())) {
+            logger.debug(" File is already being received, aborting.");
+            output.write((byte) ConnectionMessages.SERVER_ERROR);
+            output.flush();
+            return;
+        }
 
-                    // Replication push
-                    if (meta.getServerlocations().contains(parent.getServermanager().getServerUUID())) {
-                        // Save filemeta in archive
-                        parent.getServermanager().getArchive().updateContentFile(meta);
-                    } else {
-                        // Add server to serverlocs of the meta file
-                        meta.getServerlocations().add(parent.getServermanager().getServerUUID());
+        Archive archive = parent.getServermanager().getArchive();
+        try {
+            output.write((byte) ConnectionMessages.SERVER_FILEPUSH_ACCEPT);
+            output.flush();
 
-                        // Save filemeta in archive
-                        parent.getServermanager().getArchive().updateContentFile(meta);
+            // Get the file size
+            byte[] buffer = new byte[8];
+            FileTransfer.readFully(socket.getInputStream(), buffer);
+            long filesize = Utilities.bytesToLong(buffer);
 
-                        // Add file for replication (this will also push changes to other servers).
-                        parent.getServermanager().getReplicationStack().addFileForReplication(meta.getId());
-                        parent.getServermanager().getReplicator().interrupt();
-                    }
-                }
+            // Tell how much we already have
+            Path partialFile = archive.getPartialUpload(meta.getId());
+            long offset = Files.exists(partialFile) ? Files.size(partialFile) : 0;
+            if (offset > filesize) {
+                // Left from a different version of the file
+                offset = 0;
+            }
+            output.write(Utilities.longToBytes(offset));
+            output.flush();
+            logger.debug(" bytes to transfer: " + (filesize - offset) + " of " + filesize);
 
+            try (FileChannel channel = FileChannel.open(partialFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                channel.truncate(offset);
+                channel.position(offset);
+                FileTransfer.receiveChunks(socket.getInputStream(), Channels.newOutputStream(channel), filesize - offset);
             } catch (IOException ex) {
-                logger.fatal("Error in receiving file from client!", ex);
+                logger.error("Resumable push of file '" + meta.getId() + "' broke off, keeping the received part.", ex);
                 // For a hard close (as the stream is now invalid!
                 socket.close();
-            } finally {
-                if (stream != null)
-                    try {
-                        stream.close();
-                    } catch (IOException ex) {
-                        // ignore
-                    }
+                return;
+            }
+
+            // The file was received in parts, check it as a whole
+            byte[] checksum = null;
+            try {
+                checksum = Utilities.createChecksum(partialFile.toFile());
+            } catch (Exception ex) {
+                logger.error("Could not calculate checksum, considering file invalid.");
+            }
+            if (!Utilities.validateHash(checksum, meta.getChecksum())) {
+                logger.error("Checksum of received file '" + meta.getId() + "' does not match its meta, discarding file.");
+                archive.discardUpload(partialFile);
+                output.write((byte) ConnectionMessages.SERVER_ERROR);
+                output.flush();
+                return;
+            }
+
+            archive.commitUpload(partialFile, meta.getId(), checksum);
+            storePushedMeta(meta);
+
+            output.write((byte) ConnectionMessages.SERVER_FILEPUSH_ACCEPT);
+            output.flush();
+            logger.debug("File transfer complete!");
+        } finally {
+            parent.finishResumableUpload(meta.getId());
+        }
+    }
+
+    /**
+     * Handles the push of a chunked file. The client sends the list of
+     * chunks, only the chunks this server does not have yet are requested.
+     *
+     * @throws IOException
+     */
+    private void handleChunkedPushRequest() throws IOException {
+        logger.debug("Chunked file push request");
+
+        FileMeta meta = readPushedMeta();
+        if (meta == null) {
+            // The chunk list that follows the meta can not be skipped
+            socket.close();
+            return;
+        }
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        Archive archive = parent.getServermanager().getArchive();
+
+        // Read the chunk list, a file can not have more chunks than fit in the archive
+        int count = input.readInt();
+        if (count < 0 || count > Settings.ARCHIVE_MAX_SIZE / Chunk.MIN_LENGTH + 1) {
+            throw new IOException("Invalid amount of chunks " + count);
+        }
+        List<Chunk> chunks = new ArrayList<>(count);
+        byte[] hash = new byte[Chunk.HASH_LENGTH];
+        for (int i = 0; i < count; i++) {
+            input.readFully(hash);
+            Chunk chunk = new Chunk(new String(hash, "US-ASCII"), input.readInt());
+            // The hash is used as a file name
+            if (!Chunk.isValidHash(chunk.getHash()) || chunk.getLength() <= 0 || chunk.getLength() > Chunk.MAX_LENGTH) {
+                throw new IOException("Invalid chunk " + i + " in the chunk list.");
+            }
+            chunks.add(chunk);
+        }
+
+        if (isDuplicate(meta) || linkStoredCopy(meta)) {
+            logger.debug(" File already exists, aborting.");
+            output.write((byte) ConnectionMessages.SERVER_FILEPUSH_DUPELICATE);
+            output.flush();
+            return;
+        }
+
+        // Ask for the chunks we do not have (once, a file can use a chunk more than once)
+        List<Integer> missing = new ArrayList<>();
+        Set<String> requested = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            String chunkHash = chunks.get(i).getHash();
+            if (!archive.hasChunk(chunkHash) && requested.add(chunkHash)) {
+                missing.add(i);
+            }
+        }
+        logger.debug(" requesting " + missing.size() + " of " + count + " chunks.");
+
+        output.write((byte) ConnectionMessages.SERVER_FILEPUSH_ACCEPT);
+        output.writeInt(missing.size());
+        for (int index : missing) {
+            output.writeInt(index);
+        }
+        output.flush();
+
+        try {
+            byte[] buffer = new byte[0];
+            for (int index : missing) {
+                Chunk chunk = chunks.get(index);
+                if (buffer.length < chunk.getLength()) {
+                    buffer = new byte[chunk.getLength()];
+                }
+                input.readFully(buffer, 0, chunk.getLength());
+                // Checks the content against the hash
+                archive.storeChunk(chunk.getHash(), buffer, chunk.getLength());
+            }
+        } catch (IOException ex) {
+            logger.error("Chunked push of file '" + meta.getId() + "' broke off.", ex);
+            // For a hard close (as the stream is now invalid!
+            socket.close();
+            return;
+        }
+
+        // Check the file as a whole before it replaces anything
+        MessageDigest digest = Utilities.createChecksumDigest();
+        for (Chunk chunk : chunks) {
+            digest.update(archive.readChunk(chunk.getHash()));
+        }
+        byte[] checksum = digest.digest();
+        if (!Utilities.validateHash(checksum, meta.getChecksum())) {
+            logger.error("Checksum of received file '" + meta.getId() + "' does not match its meta, discarding file.");
+            output.write((byte) ConnectionMessages.SERVER_ERROR);
+            output.flush();
+            return;
+        }
+
+        archive.commitChunkedUpload(meta.getId(), chunks, checksum);
+        storePushedMeta(meta);
+
+        output.write((byte) ConnectionMessages.SERVER_FILEPUSH_ACCEPT);
+        output.flush();
+        logger.debug("File transfer complete!");
+    }
+
+    /**
+     * Reads the filemeta that starts a push.
+     *
+     * @return the filemeta, or NULL if it was invalid (the error is send)
+     * @throws IOException
+     */
+    private FileMeta readPushedMeta() throws IOException {
+        // Get the filemeta size
+        byte[] buffer = new byte[8];
+        FileTransfer.readFully(socket.getInputStream(), buffer);
+        // Can metafiles be larger than INT.MAXVALUE?
+        long filemetasize = Math.min(Utilities.bytesToLong(buffer), (long) Integer.MAX_VALUE);
+
+        // Can be shrink this somehow?
+        buffer = new byte[(int) filemetasize];
+        FileTransfer.readFully(socket.getInputStream(), buffer);
+
+        // Create the filemeta object!
+        try {
+            return decodeMeta(buffer);
+        } catch (ParseException ex) {
+            logger.fatal("Incorrect metadata send by client. Aborting..");
+            socket.getOutputStream().write((byte) ConnectionMessages.SERVER_ERROR);
+            return null;
+        }
+    }
+
+    /**
+     * Checks if the archive already has the file described by the meta,
+     * using the checksum recorded when the file was stored so normally no
+     * file is read. Does not change the archive.
+     *
+     * @return true if the pushed file is available, the push is a duplicate
+     */
+    private boolean isDuplicate(FileMeta meta) {
+        Archive archive = parent.getServermanager().getArchive();
+
+        byte[] checksum = null;
+        try {
+            checksum = archive.getChecksum(meta.getId());
+        } catch (IOException ex) {
+            logger.error("Could not calculate checksum, considering file invalid.");
+        }
+        // No need to check for file exising here, checksum will be NULL so always invalid!
+        return Utilities.validateHash(checksum, meta.getChecksum());
+    }
+
+    /**
+     * Stores a pushed file as a link to the same content stored under a
+     * different id, and stores its meta, so nothing has to be transferred.
+     * The content is found on the checksum in the meta, which is only
+     * trusted from the server nodes in the membership: anyone else must send
+     * the content itself, or it could claim the checksum of any file to get
+     * a copy of it. The server mode a connection claims is not enough, any
+     * client can set it.
+     *
+     * @return true if the file was linked, false if it must be received
+     * @throws IOException
+     */
+    private boolean linkStoredCopy(FileMeta meta) throws IOException {
+        if (!connectedToServer || !parent.getServermanager().getMembership().getNodes().containsKey(socket.getInetAddress())) {
+            return false;
+        }
+        Archive archive = parent.getServermanager().getArchive();
+        UUID source = archive.findFileByChecksum(meta.getChecksum());
+        if (source == null) {
+            return false;
+        }
+        try {
+            archive.linkFile(source, meta.getId());
+        } catch (IOException ex) {
+            logger.error("Could not store file '" + meta.getId() + "' as a copy of file '" + source + "', receiving it instead.", ex);
+            return false;
+        }
+        logger.debug(" Content is already stored as file " + source + ", linked it.");
+        storePushedMeta(meta);
+        return true;
+    }
+
+    /**
+     * Saves the meta of a file that was pushed and committed to the archive,
+     * and puts the file on the replication stack when needed.
+     *
+     * @throws IOException
+     */
+    private void storePushedMeta(FileMeta meta) throws IOException {
+        Archive archive = parent.getServermanager().getArchive();
+
+        // No sender, so new file from client
+        if (meta.getSenderIP().isEmpty()) {
+            meta.setSenderIp(socket.getInetAddress().getHostAddress());
+            if (!meta.getServerlocations().contains(parent.getServermanager().getServerUUID())) {
+                meta.getServerlocations().add(parent.getServermanager().getServerUUID());
+            }
+
+            // Save filemeta in archive
+            archive.updateContentFile(meta);
+
+            // New files go ahead of the files that are already in the network
+            parent.getServermanager().getReplicationStack().addFileForReplication(meta.getId(), ReplicateStack.Priority.UPLOAD);
+        } else {
+
+            // Replication push, the meta keeps the version of the sending
+            // server, which gives it a new version when the replication is done
+            boolean replicate = !meta.getServerlocations().contains(parent.getServermanager().getServerUUID());
+            if (replicate) {
+                // Add server to serverlocs of the meta file
+                meta.getServerlocations().add(parent.getServermanager().getServerUUID());
+            }
+
+            // Save filemeta in archive
+            if (!archive.mergeFileMeta(meta)) {
+                if (archive.getFileMeta(meta.getId()) == null) {
+                    // Removed while it was pushed, the content is not needed anymore
+                    logger.debug(" File '" + meta.getId() + "' was removed during the push, dropped the content.");
+                    archive.deleteFile(meta.getId());
+                    return;
+                }
+                logger.debug(" Stored filemeta of '" + meta.getId() + "' is newer, kept it.");
+            }
+
+            if (replicate) {
+                // Add file for replication (this will also push changes to other servers).
+                parent.getServermanager().getReplicationStack().addFileForReplication(meta.getId());
             }
         }
     }
@@ -408,38 +1165,36 @@ class ConnectionHandler implements Runnable {
             parent.getServermanager().getReplicationStack().removeReplicationFile(fileid);
 
             // First remove it from our own meta
+            long version = 0;
             try {
-                parent.getServermanager().getArchive().removeMetaFromContentFile(fileid);
+                version = parent.getServermanager().getArchive().removeMetaFromContentFile(fileid);
             } catch (org.json.simple.parser.ParseException ex) {
                 logger.error("Could not update meta file (INVALID META!)");
             }
 
             // Cascade update to other servers if came from client
-            if (!this.connectedToServer) {
-                // Message from client, cascade to other servers
-                ClientSocket srvsock = null;
-                Map<InetAddress, ServerNode> nodes = new NodeSpotter().findNodes();
-                for (InetAddress addr : nodes.keySet()) {
-                    try {
-                        srvsock = new ClientSocket(true);
-                        srvsock.openConnection(addr);
-                        srvsock.deleteFile(fileid);
-                    } catch (IOException ex) {
-                        logger.error("Failed to send metadelete to " + nodes.get(addr).getId());
-                    } finally {
-                        try {
-                            if (srvsock != null)
-                                srvsock.closeConnection();
-                        } catch (IOException ex) {
-                        }
-                    }
-                }
+            if (!this.connectedToServer && version > 0) {
+                // Message from client, cascade to other servers with the version of the removal
+                final UUID deleteid = fileid;
+                final long deleteversion = version;
+                FanoutDispatcher.Result result = parent.getServermanager().getFanoutDispatcher().dispatch(
+                        parent.getServermanager().getMembership().getNodes(),
+                        new FanoutDispatcher.PeerRequest() {
+                            @Override
+                            public boolean send(ClientSocket srvsock) throws IOException {
+                                // A server that does not know the file is fine as well
+                                srvsock.removeMeta(deleteid, deleteversion);
+                                return true;
+                            }
+                        }, "metadelete of " + fileid);
+                logger.debug("Metadelete send to " + result.getSucceeded().size() + " servers, "
+                        + (result.getFailed().size() + result.getTimedOut().size()) + " pending.");
             }
 
             try {
                 // Delete the file if it exists on this server
                 parent.getServermanager().getArchive().checkIfExists(fileid);
-                parent.getServermanager().getArchive().deleteFile(fileid.toString());
+                parent.getServermanager().getArchive().deleteFile(fileid);
             } catch (NoSuchFileException ex) {
                 // Ignore (make it cascade to other servers!)
             }
@@ -455,52 +1210,87 @@ class ConnectionHandler implements Runnable {
         }
     }
 
+    /**
+     * Handles a removal of filemeta by another server. Unlike a delete by a
+     * client, the removal keeps the version it got on the server the client
+     * deleted it on, so it only removes an older copy and all servers end
+     * up with the same tombstone.
+     */
+    private void handleMetaRemove() throws IOException {
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        byte[] buffer = new byte[36];
+        input.readFully(buffer);
+        UUID fileid = UUID.fromString(new String(buffer));
+        long version = input.readLong();
+        logger.debug("File meta remove request of " + fileid + " version " + version);
+
+        OutputStream output = socket.getOutputStream();
+        if (!connectedToServer) {
+            // Clients delete through FILE_DEL, which gives the removal its version here
+            output.write(ConnectionMessages.SERVER_ERROR);
+            return;
+        }
+
+        Archive archive = parent.getServermanager().getArchive();
+        if (!archive.mergeRemoval(fileid, version)) {
+            // Already removed, or changed again after the removal
+            output.write(ConnectionMessages.SERVER_FILEDELETE_MISSING);
+            return;
+        }
+
+        // Same as a delete request: stop replicating and drop the content
+        parent.getServermanager().getReplicationStack().removeReplicationFile(fileid);
+        if (archive.hasFile(fileid)) {
+            archive.deleteFile(fileid);
+        }
+        output.write(ConnectionMessages.SERVER_FILEDELETE_DELETED);
+        logger.info("File '" + fileid.toString() + "' deleted by server!");
+    }
+
     private void handleMetaUpdate() {
         logger.debug("File meta update request");
         try {
             // Get the filemeta size
             byte[] buffer = new byte[8];
-            socket.getInputStream().read(buffer);
+            FileTransfer.readFully(socket.getInputStream(), buffer);
             // Can metafiles be larger than INT.MAXVALUE?
             long filemetasize = Math.min(Utilities.bytesToLong(buffer), (long) Integer.MAX_VALUE);
 
             buffer = new byte[(int) filemetasize];
-            socket.getInputStream().read(buffer);
-
-            JSONObject obj = (JSONObject) JSONValue.parse(new String(buffer));
+            FileTransfer.readFully(socket.getInputStream(), buffer);
 
             // Create the filemeta object!
             FileMeta meta;
             try {
-                meta = FileMeta.fromJSON(obj);
+                meta = decodeMeta(buffer);
             } catch (ParseException ex) {
                 logger.fatal("Incorrect metadata send by client. Aborting..");
                 return;
             }
 
             // Update first in own library
-            this.parent.getServermanager().getArchive().updateContentFile(meta);
+            if (this.connectedToServer) {
+                // A copy from another server only replaces an older copy
+                if (!this.parent.getServermanager().getArchive().mergeFileMeta(meta)) {
+                    logger.debug(" Stored filemeta is newer, update ignored.");
+                }
+            } else {
+                // A change by a client, this gives the meta its new version
+                this.parent.getServermanager().getArchive().updateContentFile(meta);
 
-            // Cascade update to other servers if came from client
-            if (!this.connectedToServer) {
                 // Message from client, cascade to other servers
-                ClientSocket srvsock = null;
-                Map<InetAddress, ServerNode> nodes = new NodeSpotter().findNodes();
-                for (InetAddress addr : nodes.keySet()) {
-                    try {
-                        srvsock = new ClientSocket(true);
-                        srvsock.openConnection(addr);
-                        srvsock.sendMetaUpdate(meta);
-                    } catch (IOException ex) {
-                        logger.error("Failed to send metadelete to " + nodes.get(addr).getId());
-                    } finally {
-                        try {
-                            if (srvsock != null)
-                                srvsock.closeConnection();
-                        } catch (IOException ex) {
-                        }
-                    }
-                }
+                final FileMeta updatedmeta = meta;
+                FanoutDispatcher.Result result = parent.getServermanager().getFanoutDispatcher().dispatch(
+                        parent.getServermanager().getMembership().getNodes(),
+                        new FanoutDispatcher.PeerRequest() {
+                            @Override
+                            public boolean send(ClientSocket srvsock) throws IOException {
+                                srvsock.sendMetaUpdate(updatedmeta);
+                                return true;
+                            }
+                        }, "metaupdate of " + meta.getId());
+                logger.debug("Metaupdate send to " + result.getSucceeded().size() + " servers, "
+                        + (result.getFailed().size() + result.getTimedOut().size()) + " pending.");
             }
         } catch (IOException ex) {
             logger.fatal("Error in updating metafile!", ex);
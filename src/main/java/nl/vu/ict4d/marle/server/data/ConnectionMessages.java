@@ -16,6 +16,28 @@ interface ConnectionMessages {
     static final String SERVER_FILE_DELETE = "FILE_DEL";
     static final String SERVER_META_DOWNLOAD = "META_GET";
     static final String SERVER_META_UPDATE = "META_UPD";
+    /** Download of all filemeta, one object at a time. */
+    static final String SERVER_META_STREAM = "META_STR";
+    /** Agrees on the filemeta encoding used for the rest of the connection. */
+    static final String SERVER_META_VERSION = "META_VER";
+    /** Download of the filemeta that changed since a given sequence number. */
+    static final String SERVER_META_CHANGES = "META_CHG";
+    /** Download of the hashes of the children of nodes in the filemeta hash tree. */
+    static final String SERVER_META_TREE = "META_TRE";
+    /** Download of the filemeta below leaves of the filemeta hash tree. */
+    static final String SERVER_META_BUCKETS = "META_BKT";
+    /** Removal of filemeta by another server, with the version of the removal. */
+    static final String SERVER_META_REMOVE = "META_RMV";
+    /** Pull of a file in checksummed chunks, starting at a given offset. */
+    static final String SERVER_FILE_RESUMABLE_PULL = "FILE_RPL";
+    /** Push of a file in checksummed chunks, continuing where a previous push stopped. */
+    static final String SERVER_FILE_RESUMABLE_PUSH = "FILE_RPS";
+    /** Push of a chunked file, only the chunks the server does not have are send. */
+    static final String SERVER_FILE_CHUNKED_PUSH = "FILE_CPS";
+    /** Pull of a list of files, send back to back. */
+    static final String SERVER_FILE_BATCH_PULL = "FILE_BPL";
+    /** Push of a list of files, the files are send without waiting for the answer on the previous one. */
+    static final String SERVER_FILE_BATCH_PUSH = "FILE_BPS";
     
     
     /** First bit for response on filerequest noting that the file exists and is send. **/
@@ -30,6 +52,13 @@ interface ConnectionMessages {
     static final int SERVER_FILEDELETE_DELETED = 1;
     static final int SERVER_FILEDELETE_MISSING = 2;
     
+    /** Marks the end of the changes, followed by the next sequence number and if all changes were send. */
+    static final int SERVER_METACHANGE_END = 0;
+    /** A changed filemeta follows. */
+    static final int SERVER_METACHANGE_UPDATE = 1;
+    /** The id and version of a removed filemeta follow. */
+    static final int SERVER_METACHANGE_REMOVE = 2;
+    
     
     static final int SERVER_ERROR = 200;
     
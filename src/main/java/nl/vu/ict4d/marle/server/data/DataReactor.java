@@ -0,0 +1,196 @@
+package nl.vu.ict4d.marle.server.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import org.apache.log4j.Logger;
+
+/**
+ * Waits for requests on a set of data connections using a selector, so an idle connection does
+ * not need a thread of its own. Once a complete command has been read the connection is switched
+ * to blocking mode and handed to a worker, which runs the normal request handler. When the
+ * request is done the connection is given back to the reactor to wait for the next command.
+ *
+ * @author RMH
+ */
+class DataReactor extends Thread {
+
+    private static final Logger logger = Logger.getLogger("MarleLogger");
+    /** The length of a command frame (FILE_PUL, META_GET, ...). */
+    private static final int COMMAND_LENGTH = 8;
+    private final Selector selector;
+    private final Executor workers;
+    private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+
+    DataReactor(int index, Executor workers) throws IOException {
+        super("MARLE REACTOR " + index);
+        this.selector = Selector.open();
+        this.workers = workers;
+        setDaemon(true);
+    }
+
+    /**
+     * Hands a new connection to the reactor. The connection must already have received the
+     * accept response.
+     *
+     * @param channel
+     * @param handler the handler that will handle the requests of the connection
+     */
+    void register(SocketChannel channel, ConnectionHandler handler) {
+        pending.add(new Connection(channel, handler));
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        List<Connection> ready = new ArrayList<>();
+        while (true) {
+            try {
+                selector.select();
+
+                // Register new and finished connections
+                Connection connection;
+                while ((connection = pending.poll()) != null) {
+                    try {
+                        connection.channel.configureBlocking(false);
+                        connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    } catch (IOException ex) {
+                        logger.error("Could not register connection with the reactor.", ex);
+                        connection.close();
+                    }
+                }
+
+                // Read from the connections that got data
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    connection = (Connection) key.attachment();
+                    try {
+                        if (connection.read()) {
+                            key.cancel();
+                            ready.add(connection);
+                        }
+                    } catch (IOException ex) {
+                        logger.debug("Handling finished, closing connection...");
+                        key.cancel();
+                        connection.close();
+                    }
+                }
+
+                if (!ready.isEmpty()) {
+                    // Flush the cancelled keys, only then the channels can be made blocking
+                    selector.selectNow();
+                    for (Connection readyConnection : ready) {
+                        dispatch(readyConnection);
+                    }
+                    ready.clear();
+                }
+            } catch (IOException ex) {
+                logger.fatal("Error in the data reactor!", ex);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Lets a worker handle the command that was read on the connection.
+     */
+    private void dispatch(final Connection connection) {
+        try {
+            connection.channel.configureBlocking(true);
+        } catch (IOException ex) {
+            logger.error("Could not switch connection to blocking mode.", ex);
+            connection.close();
+            return;
+        }
+
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (connection.handle()) {
+                    pending.add(connection);
+                    selector.wakeup();
+                } else {
+                    connection.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * The state of a single connection while the reactor reads its next command.
+     */
+    private static class Connection {
+
+        private final SocketChannel channel;
+        private final ConnectionHandler handler;
+        private final ByteBuffer mode = ByteBuffer.allocate(1);
+        private final ByteBuffer command = ByteBuffer.allocate(COMMAND_LENGTH);
+        private boolean attached = false;
+
+        Connection(SocketChannel channel, ConnectionHandler handler) {
+            this.channel = channel;
+            this.handler = handler;
+        }
+
+        /**
+         * Reads the available data, never more than the current frame.
+         *
+         * @return true if a complete command was read
+         * @throws IOException if the connection was closed
+         */
+        boolean read() throws IOException {
+            if (!attached) {
+                // First byte tells if this is a server or client
+                if (channel.read(mode) == -1) {
+                    throw new IOException("Connection closed.");
+                }
+                if (mode.hasRemaining()) {
+                    return false;
+                }
+                handler.attach(channel.socket(), mode.get(0) == 1);
+                attached = true;
+            }
+
+            if (channel.read(command) == -1) {
+                throw new IOException("Connection closed.");
+            }
+            return !command.hasRemaining();
+        }
+
+        /**
+         * Handles the command that was read.
+         *
+         * @return true if the connection can be used for the next command
+         */
+        boolean handle() {
+            String requestString = new String(command.array(), 0, command.position()).trim();
+            command.clear();
+            try {
+                return handler.handleRequest(requestString) && !handler.isClosed();
+            } catch (Exception ex) {
+                // Special exception catcher, just to be sure
+                logger.error("Handling the client connection went wrong. Outer exception handler reached!", ex);
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+            handler.close();
+        }
+    }
+}
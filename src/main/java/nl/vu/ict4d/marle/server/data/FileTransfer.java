@@ -0,0 +1,309 @@
+package nl.vu.ict4d.marle.server.data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+import nl.vu.ict4d.marle.server.util.Settings;
+
+/**
+ * Helper methods for moving file data over the data connections.
+ *
+ * @author RMH
+ */
+final class FileTransfer {
+
+    static final int BUFFER_SIZE = 16000;
+    /** The largest chunk that is accepted, whatever the chunk size of the sender. */
+    static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private FileTransfer() {
+    }
+
+    /**
+     * Copies exactly the given amount of bytes from the input to the output,
+     * using a single fixed size buffer.
+     *
+     * @param input the stream to read from
+     * @param output the stream to write to
+     * @param size the amount of bytes to copy
+     * @param digest if not null, all copied bytes are also added to this digest
+     * @throws EOFException if the input ended before all bytes were copied
+     * @throws IOException
+     */
+    static void copy(InputStream input, OutputStream output, long size, MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length, readBytes;
+
+        // Loop till entire file received
+        while (size > 0) {
+            length = (int) Math.min(size, (long) BUFFER_SIZE);
+
+            // Read/write the data
+            readBytes = input.read(buffer, 0, length);
+            if (readBytes == -1) {
+                throw new EOFException("Connection closed with " + size + " bytes left to receive.");
+            }
+
+            // Use the readBytes from hereon (this can differ!)
+            output.write(buffer, 0, readBytes);
+            if (digest != null) {
+                digest.update(buffer, 0, readBytes);
+            }
+
+            size -= readBytes;
+        }
+        output.flush();
+    }
+
+    /**
+     * Fills the given buffer completely from the input.
+     *
+     * @param input
+     * @param buffer
+     * @throws EOFException if the input ended before the buffer was full
+     * @throws IOException
+     */
+    static void readFully(InputStream input, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int readBytes = input.read(buffer, offset, buffer.length - offset);
+            if (readBytes == -1) {
+                throw new EOFException("Connection closed while reading.");
+            }
+            offset += readBytes;
+        }
+    }
+
+    /**
+     * Sends a part of a file over the socket. If the socket has a (blocking)
+     * channel the file is handed to the kernel with
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+     * so the data is never copied into the JVM, otherwise it is copied over
+     * the output stream of the socket.
+     *
+     * @param socket the socket to write to
+     * @param file the file to send
+     * @param offset the position in the file to start from
+     * @param count the amount of bytes to send
+     * @throws EOFException if the file is shorter than expected
+     * @throws IOException
+     */
+    static void send(Socket socket, Path file, long offset, long count) throws IOException {
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            SocketChannel target = socket.getChannel();
+            if (target != null && target.isBlocking()) {
+                long position = offset;
+                long end = offset + count;
+                while (position < end) {
+                    long sent = source.transferTo(position, end - position, target);
+                    if (sent <= 0 && position >= source.size()) {
+                        throw new EOFException("File ended with " + (end - position) + " bytes left to send.");
+                    }
+                    position += sent;
+                }
+            } else {
+                // No channel available, copy through the streams
+                source.position(offset);
+                copy(Channels.newInputStream(source), socket.getOutputStream(), count, null);
+            }
+        }
+    }
+
+    /**
+     * Sends a part of a file as numbered chunks. Every chunk is send as its
+     * sequence number (int), length (int), the data and the CRC32 of the data
+     * (long). The end of the file is marked by a chunk with length 0.
+     *
+     * @param socket the socket to write to
+     * @param file the file to send
+     * @param offset the position in the file to start from
+     * @param count the amount of bytes to send
+     * @throws EOFException if the file is shorter than expected
+     * @throws IOException
+     */
+    static void sendChunks(Socket socket, Path file, long offset, long count) throws IOException {
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            source.position(offset);
+            sendChunks(socket, Channels.newInputStream(source), count);
+        }
+    }
+
+    /**
+     * Sends data from the input as numbered chunks, like
+     * {@link #sendChunks(Socket, Path, long, long)}.
+     *
+     * @param socket the socket to write to
+     * @param input the data to send, positioned at the first byte to send
+     * @param count the amount of bytes to send
+     * @throws EOFException if the input is shorter than expected
+     * @throws IOException
+     */
+    static void sendChunks(Socket socket, InputStream input, long count) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        byte[] buffer = new byte[(int) Math.min(Settings.TRANSFER_CHUNK_SIZE, Math.max(count, 1))];
+        CRC32 crc = new CRC32();
+        int seq = 0;
+
+        long remaining = count;
+        while (remaining > 0) {
+            int length = (int) Math.min(buffer.length, remaining);
+            int filled = 0;
+            while (filled < length) {
+                int readBytes = input.read(buffer, filled, length - filled);
+                if (readBytes == -1) {
+                    throw new EOFException("File ended with " + (remaining - filled) + " bytes left to send.");
+                }
+                filled += readBytes;
+            }
+
+            crc.reset();
+            crc.update(buffer, 0, length);
+            output.writeInt(seq++);
+            output.writeInt(length);
+            output.write(buffer, 0, length);
+            output.writeLong(crc.getValue());
+            remaining -= length;
+        }
+
+        // End marker
+        output.writeInt(seq);
+        output.writeInt(0);
+        output.flush();
+    }
+
+    /**
+     * Receives the chunks send by {@link #sendChunks(Socket, Path, long, long)}.
+     * A chunk is only written to the output after its checksum was verified,
+     * so after a failure the output holds exactly the bytes of the chunks
+     * that were received in full.
+     *
+     * @param input the stream to read from
+     * @param output the stream to write the data to
+     * @param count the amount of bytes that will be send
+     * @return the amount of bytes received
+     * @throws IOException if the connection broke, a chunk was corrupted or
+     * more or less data than expected was send
+     */
+    static long receiveChunks(InputStream input, OutputStream output, long count) throws IOException {
+        DataInputStream data = new DataInputStream(input);
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[0];
+        long received = 0;
+        int expectedSeq = 0;
+
+        while (true) {
+            int seq = data.readInt();
+            int length = data.readInt();
+            if (seq != expectedSeq) {
+                throw new IOException("Received chunk " + seq + " while expecting chunk " + expectedSeq + ".");
+            }
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || length > MAX_CHUNK_SIZE || received + length > count) {
+                throw new IOException("Received chunk " + seq + " with an invalid length of " + length + " bytes.");
+            }
+
+            if (buffer.length < length) {
+                buffer = new byte[length];
+            }
+            data.readFully(buffer, 0, length);
+            long checksum = data.readLong();
+
+            crc.reset();
+            crc.update(buffer, 0, length);
+            if (crc.getValue() != checksum) {
+                throw new IOException("Chunk " + seq + " is corrupted.");
+            }
+
+            output.write(buffer, 0, length);
+            output.flush();
+            received += length;
+            expectedSeq++;
+        }
+
+        if (received != count) {
+            throw new EOFException("Transfer ended with " + (count - received) + " bytes left to receive.");
+        }
+        return received;
+    }
+
+    /**
+     * A view on the next bytes of a stream, so a parser can read a message
+     * straight from the connection without reading past its end. Closing the
+     * view does not close the connection.
+     */
+    static final class BoundedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        BoundedInputStream(InputStream input, long length) {
+            super(input);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int value = in.read();
+            if (value == -1) {
+                throw new EOFException("Connection closed while reading.");
+            }
+            remaining--;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read == -1) {
+                throw new EOFException("Connection closed while reading.");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        /**
+         * Skips the part of the message that was not read.
+         */
+        void drain() throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (read(buffer, 0, buffer.length) != -1) {
+                // Skip
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            drain();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package nl.vu.ict4d.marle.server.data;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import nl.vu.ict4d.marle.server.util.Settings;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps connections to other server nodes open, so they can be reused for the next request
+ * instead of setting up a new connection (and handshake) for every message.
+ *
+ * A connection is taken from the pool with {@link #borrow(InetAddress)} and must be given back
+ * with {@link #release(InetAddress, ClientSocket)} when the request went fine, or
+ * {@link #invalidate(ClientSocket)} when it failed (the state of the stream is unknown then).
+ *
+ * @author RMH
+ */
+public class PeerConnectionPool {
+
+    private static final Logger logger = Logger.getLogger("MarleLogger");
+    private final ConcurrentHashMap<InetAddress, Deque<IdleConnection>> idle = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    public PeerConnectionPool() {
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MARLE POOL EVICTOR");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, Settings.PEER_IDLE_TIMEOUT, Settings.PEER_IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets a connection to the given server node, reusing an open one when possible.
+     *
+     * @param host
+     * @return an open connection in server mode
+     * @throws IOException if no connection could be made or the server is busy
+     */
+    public ClientSocket borrow(InetAddress host) throws IOException {
+        Deque<IdleConnection> connections = idle.get(host);
+        if (connections != null) {
+            IdleConnection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                if (connection.socket.isHealthy()) {
+                    return connection.socket;
+                }
+                logger.debug("Dropping broken connection to " + host.getHostAddress());
+                invalidate(connection.socket);
+            }
+        }
+
+        ClientSocket socket = new ClientSocket(true);
+        if (!socket.openConnection(host)) {
+            throw new IOException("Server " + host.getHostAddress() + " rejected the connection.");
+        }
+        socket.setTimeout(Settings.PEER_READ_TIMEOUT);
+        return socket;
+    }
+
+    /**
+     * Gives a connection back to the pool after a successful request.
+     *
+     * @param host the server the connection is connected to
+     * @param socket the connection, may be NULL
+     */
+    public void release(InetAddress host, ClientSocket socket) {
+        if (socket == null) {
+            return;
+        }
+
+        Deque<IdleConnection> connections = idle.get(host);
+        if (connections == null) {
+            connections = new ConcurrentLinkedDeque<>();
+            Deque<IdleConnection> existing = idle.putIfAbsent(host, connections);
+            if (existing != null) {
+                connections = existing;
+            }
+        }
+
+        if (connections.size() < Settings.PEER_MAX_IDLE) {
+            // Most recently used first, so the oldest ones expire
+            connections.addFirst(new IdleConnection(socket));
+        } else {
+            invalidate(socket);
+        }
+    }
+
+    /**
+     * Closes a connection that can not be reused.
+     *
+     * @param socket the connection, may be NULL
+     */
+    public void invalidate(ClientSocket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.closeConnection();
+        } catch (IOException | IllegalStateException ex) {
+            // ignore
+        }
+    }
+
+    /**
+     * Closes the connections that were not used for a while.
+     */
+    private void evictIdle() {
+        long expired = System.currentTimeMillis() - Settings.PEER_IDLE_TIMEOUT;
+        for (Deque<IdleConnection> connections : idle.values()) {
+            for (Iterator<IdleConnection> it = connections.iterator(); it.hasNext();) {
+                IdleConnection connection = it.next();
+                if (connection.since < expired && connections.removeFirstOccurrence(connection)) {
+                    invalidate(connection.socket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes all connections in the pool.
+     */
+    public void close() {
+        evictor.shutdownNow();
+        for (Deque<IdleConnection> connections : idle.values()) {
+            IdleConnection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                invalidate(connection.socket);
+            }
+        }
+    }
+
+    private static class IdleConnection {
+
+        private final ClientSocket socket;
+        private final long since = System.currentTimeMillis();
+
+        IdleConnection(ClientSocket socket) {
+            this.socket = socket;
+        }
+    }
+}
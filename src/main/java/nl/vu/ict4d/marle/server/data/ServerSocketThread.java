@@ -1,9 +1,20 @@
 package nl.vu.ict4d.marle.server.data;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import nl.vu.ict4d.marle.server.MarleManager;
+import nl.vu.ict4d.marle.server.util.Settings;
 import org.apache.log4j.Logger;
 
 /**
@@ -14,20 +25,61 @@ public class ServerSocketThread extends Thread {
 
     private static final Logger logger = Logger.getLogger("MarleLogger");
     private static final int SERVER_DATA_SOCKET = 12333;
-    private static final int MAX_ACTIVE_CONNECTIONS = 10;
     private final MarleManager servermanager;
-    private final ConnectionHandler[] datahandlers = new ConnectionHandler[MAX_ACTIVE_CONNECTIONS];
+    private final ExecutorService handlerExecutor;
+    private final int maxConnections;
+    /** One permit for every connection that may be handled at the same time. */
+    private final Semaphore connectionPermits;
+    /** The files that are being received by a resumable push. */
+    private final Set<UUID> resumableUploads = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
     private ServerSocket serverSocket;
 
     public ServerSocketThread(MarleManager servermanager) {
         this.servermanager = servermanager;
+
+        ExecutorService virtualExecutor = null;
+        if (Settings.DATA_EXECUTOR.equals(Settings.DATA_EXECUTOR_VIRTUAL)) {
+            virtualExecutor = createVirtualThreadExecutor();
+        }
+
+        if (virtualExecutor != null) {
+            logger.info("Data connections are handled on virtual threads.");
+            this.handlerExecutor = virtualExecutor;
+            this.maxConnections = Settings.DATA_MAX_CONNECTIONS;
+        } else {
+            logger.info("Data connections are handled on a pool of " + Settings.DATA_POOL_SIZE + " threads.");
+            this.handlerExecutor = Executors.newFixedThreadPool(Settings.DATA_POOL_SIZE);
+            if (Settings.DATA_MODE.equals(Settings.DATA_MODE_SELECTOR)) {
+                this.maxConnections = Settings.DATA_MAX_CONNECTIONS;
+            } else {
+                // A connection keeps its pool thread for its whole lifetime in thread mode, do
+                // not accept more than the pool can run
+                this.maxConnections = Math.min(Settings.DATA_MAX_CONNECTIONS, Settings.DATA_POOL_SIZE);
+            }
+        }
+        this.connectionPermits = new Semaphore(maxConnections);
     }
 
     @Override
     public void run() {
         try {
-            serverSocket = new ServerSocket(SERVER_DATA_SOCKET);
+            // Open through a channel, so accepted connections can send files without copying them
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverSocket = serverChannel.socket();
+            serverSocket.bind(new InetSocketAddress(SERVER_DATA_SOCKET));
 
+            DataReactor[] reactors = null;
+            if (Settings.DATA_MODE.equals(Settings.DATA_MODE_SELECTOR)) {
+                // Accepted connections wait for requests in the reactors
+                reactors = new DataReactor[Settings.DATA_REACTORS];
+                for (int i = 0; i < reactors.length; i++) {
+                    reactors[i] = new DataReactor(i, handlerExecutor);
+                    reactors[i].start();
+                }
+                logger.info("Data server running in selector mode with " + reactors.length + " reactors.");
+            }
+
+            int nextReactor = 0;
             while (true) {
                 // wait for a client request and when received assign it to the
                 // client socket
@@ -36,24 +88,28 @@ public class ServerSocketThread extends Thread {
 
                 logger.debug("Incomming connection from: " + clientConnection.getInetAddress().getHostAddress());
 
-                ConnectionHandler handler = null;
-                // Find an empty spot for handling data;
-                for (int i = 0; i < datahandlers.length; i++) {
-                    if (datahandlers[i] == null) {
-                        datahandlers[i] = new ConnectionHandler(i, this);
-                        handler = datahandlers[i];
-                        break;
+                // Check if we are full
+                if (connectionPermits.tryAcquire()) {
+                    try {
+                        logger.debug("Connection accepted, send to handler.");
+                        clientConnection.getOutputStream().write(ConnectionMessages.SERVER_RESPONSE_ACCEPT.getBytes());
+                        clientConnection.getOutputStream().flush();
+                    } catch (IOException ex) {
+                        logger.error("Could not respond to client connection!", ex);
+                        connectionPermits.release();
+                        clientConnection.close();
+                        continue;
                     }
-                }
 
-                // Check if we are full
-                if (handler != null) {
-                    logger.debug("Connection accepted, send to handler.");
-                    clientConnection.getOutputStream().write(ConnectionMessages.SERVER_RESPONSE_ACCEPT.getBytes());
-                    clientConnection.getOutputStream().flush();
-                    handler.handle(clientConnection);
+                    ConnectionHandler handler = new ConnectionHandler(this);
+                    if (reactors != null) {
+                        reactors[nextReactor].register(clientConnection.getChannel(), handler);
+                        nextReactor = (nextReactor + 1) % reactors.length;
+                    } else {
+                        handler.handle(clientConnection);
+                    }
                 } else {
-                    // Server is busy, reject                
+                    // Server is busy, reject
                     try {
                         logger.debug("Connection refused, server to busy!");
                         clientConnection.getOutputStream().write(ConnectionMessages.SERVER_RESPONSE_BUSY.getBytes());
@@ -70,16 +126,25 @@ public class ServerSocketThread extends Thread {
         }
     }
 
+    /**
+     * Creates an executor that starts a virtual thread for every connection.
+     * @return the executor or NULL if the JVM has no virtual threads (before Java 21)
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            logger.info("Virtual threads are not available, falling back to a thread pool.");
+            return null;
+        }
+    }
+
     /**
      * Returns the amount of connections that are currently active.
      */
     public int getActiveConnections() {
-        int activeConnections = 0;
-        for (ConnectionHandler connectionHandler : datahandlers) {
-            if (connectionHandler == null)
-                activeConnections++;
-        }
-        return activeConnections;
+        return maxConnections - connectionPermits.availablePermits();
     }
 
     /**
@@ -88,9 +153,32 @@ public class ServerSocketThread extends Thread {
      * @param handler
      */
     void notifyDisconnect(ConnectionHandler handler) {
-        if (datahandlers[handler.getId()] == handler) {
-            datahandlers[handler.getId()] = null;
-        }
+        connectionPermits.release();
+    }
+
+    /**
+     * Claims the partial upload of the file for a resumable push, only one connection at a time
+     * may write to it.
+     * @param fileid
+     * @return false if the file is already being received by another connection
+     */
+    boolean startResumableUpload(UUID fileid) {
+        return resumableUploads.add(fileid);
+    }
+
+    /**
+     * Releases the partial upload claimed by {@link #startResumableUpload(UUID)}.
+     * @param fileid
+     */
+    void finishResumableUpload(UUID fileid) {
+        resumableUploads.remove(fileid);
+    }
+
+    /**
+     * The executor that runs the connection handlers.
+     */
+    ExecutorService getHandlerExecutor() {
+        return handlerExecutor;
     }
 
     /**
@@ -0,0 +1,97 @@
+package nl.vu.ict4d.marle.server.data.sync;
+
+/**
+ * Keeps track of the recent failures of a single server node. After too many failures in a row
+ * the breaker opens and no work is sent to the node for a while. After that a single trial
+ * request is let through (half open), which closes the breaker again when it succeeds.
+ *
+ * @author RMH
+ */
+class CircuitBreaker {
+
+    enum State {
+
+        /** The node is healthy, all requests are let through. */
+        CLOSED,
+        /** The node failed too often, no requests are let through. */
+        OPEN,
+        /** The node is being tested with a single request. */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openTime;
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt = 0;
+
+    /**
+     * @param failureThreshold the amount of failures in a row that opens the breaker
+     * @param openTime the amount of ms the breaker stays open
+     */
+    CircuitBreaker(int failureThreshold, long openTime) {
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+    }
+
+    /**
+     * Checks if a request could be let through, without claiming the trial request of a half
+     * open breaker.
+     */
+    synchronized boolean isAvailable() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return System.currentTimeMillis() - openedAt >= openTime;
+            default:
+                // The trial request is already running
+                return false;
+        }
+    }
+
+    /**
+     * Claims permission to send a request to the node. The result of the request must be
+     * reported with {@link #success()} or {@link #failure()}.
+     * @return true if the request may be sent
+     */
+    synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt >= openTime) {
+                    // Let a single trial request through
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Reports a request that succeeded, this closes the breaker.
+     */
+    synchronized void success() {
+        failures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Reports a request that failed. Opens the breaker if the trial request failed or there were
+     * too many failures in a row.
+     */
+    synchronized void failure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+}
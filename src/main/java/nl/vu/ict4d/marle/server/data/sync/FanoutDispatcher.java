@@ -0,0 +1,246 @@
+package nl.vu.ict4d.marle.server.data.sync;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import nl.vu.ict4d.marle.server.data.ClientSocket;
+import nl.vu.ict4d.marle.server.data.PeerConnectionPool;
+import nl.vu.ict4d.marle.server.multicast.ServerNode;
+import nl.vu.ict4d.marle.server.util.Settings;
+import org.apache.log4j.Logger;
+
+/**
+ * Sends a request (meta update, delete, ...) to a set of server nodes at the same time, so the
+ * slowest node decides how long it takes instead of the sum of all nodes.
+ *
+ * Requests that fail are queued per node and retried in the background, in the order they were
+ * send. While a node has queued requests new requests for it are queued behind them.
+ *
+ * @author RMH
+ */
+public class FanoutDispatcher {
+
+    private static final Logger logger = Logger.getLogger("MarleLogger");
+    private final PeerConnectionPool pool;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentHashMap<InetAddress, Queue<PendingRequest>> retries = new ConcurrentHashMap<>();
+
+    /**
+     * A request that can be send to a server node.
+     */
+    public interface PeerRequest {
+
+        /**
+         * Sends the request over the given connection.
+         *
+         * @param socket an open connection to the server node
+         * @return true if the node handled the request, false if it must be retried
+         * @throws IOException
+         */
+        boolean send(ClientSocket socket) throws IOException;
+    }
+
+    /**
+     * The outcome of sending a request to a set of server nodes.
+     */
+    public static class Result {
+
+        private final Set<InetAddress> succeeded = new HashSet<>();
+        private final Set<InetAddress> failed = new HashSet<>();
+        private final Set<InetAddress> timedOut = new HashSet<>();
+
+        /** The nodes that handled the request. */
+        public Set<InetAddress> getSucceeded() {
+            return Collections.unmodifiableSet(succeeded);
+        }
+
+        /** The nodes that did not handle the request, it is queued for a retry. */
+        public Set<InetAddress> getFailed() {
+            return Collections.unmodifiableSet(failed);
+        }
+
+        /** The nodes that did not answer in time, the request is still running. */
+        public Set<InetAddress> getTimedOut() {
+            return Collections.unmodifiableSet(timedOut);
+        }
+
+        /** True if all nodes handled the request. */
+        public boolean isComplete() {
+            return failed.isEmpty() && timedOut.isEmpty();
+        }
+    }
+
+    public FanoutDispatcher(PeerConnectionPool pool) {
+        this.pool = pool;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(Settings.FANOUT_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MARLE FANOUT " + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                retryFailed();
+            }
+        }, Settings.FANOUT_RETRY_INTERVAL, Settings.FANOUT_RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the request to all given server nodes at the same time and waits until all of them
+     * handled it, or the timeout passed.
+     *
+     * @param nodes the nodes to send the request to
+     * @param request the request to send
+     * @param description what the request is, used for logging
+     * @return which nodes handled the request
+     */
+    public Result dispatch(Map<InetAddress, ServerNode> nodes, final PeerRequest request, final String description) {
+        Result result = new Result();
+        Map<InetAddress, Future<Boolean>> running = new HashMap<>();
+
+        for (final InetAddress addr : nodes.keySet()) {
+            final PendingRequest pending = new PendingRequest(request, description);
+            if (hasRetries(addr)) {
+                // Keep the order, send it after the requests that failed before
+                queueRetry(addr, pending);
+                result.failed.add(addr);
+                continue;
+            }
+
+            running.put(addr, executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    if (send(addr, pending)) {
+                        return true;
+                    }
+                    queueRetry(addr, pending);
+                    return false;
+                }
+            }));
+        }
+
+        // Wait for the answers, the deadline is the same for all nodes
+        long deadline = System.currentTimeMillis() + Settings.FANOUT_TIMEOUT;
+        for (Map.Entry<InetAddress, Future<Boolean>> entry : running.entrySet()) {
+            try {
+                long wait = Math.max(0, deadline - System.currentTimeMillis());
+                if (entry.getValue().get(wait, TimeUnit.MILLISECONDS)) {
+                    result.succeeded.add(entry.getKey());
+                } else {
+                    result.failed.add(entry.getKey());
+                }
+            } catch (TimeoutException ex) {
+                logger.error("Server " + entry.getKey().getHostAddress() + " did not answer " + description + " in time.");
+                result.timedOut.add(entry.getKey());
+            } catch (InterruptedException | ExecutionException ex) {
+                result.failed.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sends a single request to a server node.
+     *
+     * @return true if the node handled it
+     */
+    private boolean send(InetAddress addr, PendingRequest pending) {
+        ClientSocket socket = null;
+        boolean released = false;
+        try {
+            socket = pool.borrow(addr);
+            boolean handled = pending.request.send(socket);
+            pool.release(addr, socket);
+            released = true;
+            return handled;
+        } catch (IOException ex) {
+            logger.error("Failed to send " + pending.description + " to " + addr.getHostAddress());
+            return false;
+        } finally {
+            // Also when the request failed with a runtime exception, the connection is in an unknown state
+            if (!released) {
+                pool.invalidate(socket);
+            }
+        }
+    }
+
+    private boolean hasRetries(InetAddress addr) {
+        Queue<PendingRequest> queue = retries.get(addr);
+        return queue != null && !queue.isEmpty();
+    }
+
+    private void queueRetry(InetAddress addr, PendingRequest pending) {
+        Queue<PendingRequest> queue = retries.get(addr);
+        if (queue == null) {
+            queue = new ConcurrentLinkedQueue<>();
+            Queue<PendingRequest> existing = retries.putIfAbsent(addr, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+
+        queue.add(pending);
+        while (queue.size() > Settings.FANOUT_MAX_QUEUED) {
+            PendingRequest dropped = queue.poll();
+            if (dropped != null) {
+                logger.error("Too many failed requests for " + addr.getHostAddress() + ", dropping " + dropped.description);
+            }
+        }
+    }
+
+    /**
+     * Retries the queued requests, for each node in the order they were send. Stops for a node at
+     * the first request that fails again.
+     */
+    private void retryFailed() {
+        for (Map.Entry<InetAddress, Queue<PendingRequest>> entry : retries.entrySet()) {
+            InetAddress addr = entry.getKey();
+            Queue<PendingRequest> queue = entry.getValue();
+
+            PendingRequest pending;
+            while ((pending = queue.peek()) != null) {
+                if (send(addr, pending)) {
+                    queue.remove(pending);
+                } else if (++pending.attempts >= Settings.FANOUT_MAX_ATTEMPTS) {
+                    logger.error("Giving up on sending " + pending.description + " to " + addr.getHostAddress());
+                    queue.remove(pending);
+                } else {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static class PendingRequest {
+
+        private final PeerRequest request;
+        private final String description;
+        private int attempts = 1;
+
+        PendingRequest(PeerRequest request, String description) {
+            this.request = request;
+            this.description = description;
+        }
+    }
+}
@@ -2,191 +2,439 @@ package nl.vu.ict4d.marle.server.data.sync;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import nl.vu.ict4d.marle.archive.Archive;
 import nl.vu.ict4d.marle.server.MarleManager;
 import nl.vu.ict4d.marle.server.data.ClientSocket;
+import nl.vu.ict4d.marle.server.data.PeerConnectionPool;
 import nl.vu.ict4d.marle.server.file.FileMeta;
-import nl.vu.ict4d.marle.server.multicast.NodeSpotter;
 import nl.vu.ict4d.marle.server.multicast.ServerNode;
+import nl.vu.ict4d.marle.server.util.Settings;
 import org.apache.log4j.Logger;
 
 /**
+ * Replicates the files on the replication stack to other server nodes, until each file has the
+ * configured amount of copies in the network.
+ *
+ * The replicator thread itself only takes files from the stack and picks the target servers,
+ * the pushes are done by a pool of workers. A file is pushed to all its targets at the same
+ * time, while the amount of pushes to a single server is limited.
  *
  * @author RMH
  */
 public class FileReplicator extends Thread {
 
     private static final Logger logger = Logger.getLogger("MarleLogger");
-    /** The amount of MS the thread will sleep before retrying to replicate files. */
+    /** The max amount of MS the thread waits for new files before checking the stack again. */
     private static final long SLEEP_TIME_MS = 5 * 60 * 1000; // 5 min
-    /** The amount of MS the thread will wait if no server nodes were found in the network. */
-    private static final long SLEEP_TIME_NO_NODES_MS = 5 * 60 * 1000; // 5 min
-    /**
-     * How many replications requests are handled per cycle. Note that it will still handle a
-     * lower amount of marked files, this will only limit the amount he does in a single loop
-     * before refreshing resources.
-     */
-    private static final int REPLICATIONS_PER_CYCLE = 4;
     private final MarleManager srvmgr;
+    private final ExecutorService workers;
+    /** Limits the amount of files that are replicated at the same time. */
+    private final Semaphore fileSlots = new Semaphore(Settings.REPLICATION_MAX_FILES);
+    /** Limits the amount of pushes to a single server node. */
+    private final ConcurrentHashMap<InetAddress, Semaphore> peerSlots = new ConcurrentHashMap<>();
+    /** Keeps files away from server nodes that failed too often. */
+    private final ConcurrentHashMap<InetAddress, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final Object metaLock = new Object();
+    private final PlacementStrategy placement = createPlacementStrategy(Settings.REPLICATION_PLACEMENT);
 
     public FileReplicator(MarleManager servermanger) {
+        super("MARLE REPLICATOR");
         this.srvmgr = servermanger;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Settings.REPLICATION_WORKERS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MARLE REPLICATOR " + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     @Override
-    @SuppressWarnings("SleepWhileInLoop")
     public void run() {
         while (true) {
-            List<UUID> repIdList = null;
             try {
-                try {
-                    // Only sleep if the stack is empty
-                    if (srvmgr.getReplicationStack().getItemsOnStack() == 0)
-                        Thread.sleep(SLEEP_TIME_MS);
-                } catch (InterruptedException ie) {
-                    logger.info("Replicator interrupted, starting new loop.");
+                // Only take a file when there is room for it
+                fileSlots.acquire();
+
+                // Wait for work, adding a file to the stack wakes us up right away
+                UUID fileid = srvmgr.getReplicationStack().take(SLEEP_TIME_MS);
+                if (fileid == null) {
+                    fileSlots.release();
+                    continue;
                 }
 
-                // Get the list of items to replicate.
-                if (repIdList == null)
-                    repIdList = srvmgr.getReplicationStack().getItems(REPLICATIONS_PER_CYCLE);
-
-                // Check if we got files.
-                if (!repIdList.isEmpty()) {
-                    logger.debug("Replicating " + repIdList.size() + " files");
-
-                    // Find the servers
-                    Map<InetAddress, ServerNode> networkNodes = new NodeSpotter().findNodes();
-
-                    // check if we got nodes in the network
-                    if (networkNodes.isEmpty()) {
-                        // If no nodes found, skip
-                        logger.error("No server nodes found! Cannot replicate files!");
-
-                        // Readd to the replication stack
-                        for (UUID fileid : repIdList) {
-                            srvmgr.getReplicationStack().addFileForReplication(fileid);
-                        }
-
-                        repIdList = null;
-                        networkNodes = null;
-
-                        // Sleep for a while, maybe server nodes get back up after.
-                        try {
-                            Thread.sleep(SLEEP_TIME_NO_NODES_MS);
-                        } catch (InterruptedException ie) {
-                            logger.info("Replicator interrupted while waiting for nodes to come online");
-                        }
-
-                    } else {
-                        // Loop through each of the file marked for replication
-                        for (UUID fileid : repIdList) {
-                            replicateFile(networkNodes, fileid);
-                        }
-                    }
+                // Find the servers
+                Map<InetAddress, ServerNode> networkNodes = srvmgr.getMembership().getNodes();
+
+                // check if we got nodes in the network
+                if (networkNodes.isEmpty()) {
+                    // If no nodes found, put the file back for later
+                    logger.error("No server nodes found! Cannot replicate files!");
+                    retryLater(fileid);
+                    fileSlots.release();
+                    srvmgr.getMembership().requestRefresh();
+                    continue;
                 }
 
-                // Clear variable for next run
-                repIdList = null;
-            } catch (IOException ex) {
+                try {
+                    startReplication(networkNodes, fileid);
+                } catch (RuntimeException ex) {
+                    retryLater(fileid);
+                    fileSlots.release();
+                    throw ex;
+                }
+            } catch (InterruptedException ie) {
+                logger.info("Replicator interrupted, starting new loop.");
+            } catch (RuntimeException ex) {
                 logger.fatal("Exception when replicating files, failed to replicate some files.", ex);
             }
         }
     }
 
     /**
-     * This will lookup the servernode that is best suitable to push files to.
+     * Picks the target servers for the file and starts pushing it to them. The file slot taken
+     * for the file is given back when all pushes are done.
      * @param networkNodes
-     * @return Address of the best-target servernode
+     * @param fileid
      */
-    private InetAddress selectTargetServer(Map<InetAddress, ServerNode> networkNodes) {
-        InetAddress targetAddress = null;
-        long freespace = 0;
+    private void startReplication(Map<InetAddress, ServerNode> networkNodes, UUID fileid) {
+        FileMeta meta;
+        try {
+            meta = srvmgr.getArchive().getFileMeta(fileid);
+        } catch (IOException ex) {
+            logger.error("Could not load the meta for file " + fileid, ex);
+            meta = null;
+        }
+        if (meta == null) {
+            // Removed in the meantime
+            logger.debug("File '" + fileid + "' no longer exists, not replicating.");
+            srvmgr.getReplicationStack().complete(fileid);
+            fileSlots.release();
+            return;
+        }
+
+        Set<UUID> holders = new HashSet<>(meta.getServerlocations());
+        holders.add(srvmgr.getServerUUID());
+
+        // Only count the copies on nodes that are still in the network
+        int copies = 1;
+        for (ServerNode serverNode : networkNodes.values()) {
+            if (!serverNode.getId().equals(srvmgr.getServerUUID()) && holders.contains(serverNode.getId())) {
+                copies++;
+            }
+        }
+        int needed = Settings.REPLICATION_FACTOR - copies;
+        if (needed <= 0) {
+            logger.debug("File '" + fileid + "' already has " + copies + " copies.");
+            srvmgr.getReplicationStack().complete(fileid);
+            fileSlots.release();
+            return;
+        }
+
+        List<InetAddress> targets = selectTargetServers(networkNodes, holders, needed, srvmgr.getArchive().getFileSize(fileid));
+        if (targets.isEmpty()) {
+            logger.error("No server node can take file '" + fileid + "', will retry.");
+            retryLater(fileid);
+            fileSlots.release();
+            return;
+        }
 
-        // Loop through the list to find the servernode to push to
+        logger.debug("Replicating file '" + fileid + "' to " + targets.size() + " servers.");
+        ReplicationJob job = new ReplicationJob(meta, targets.size());
+        for (InetAddress target : targets) {
+            workers.execute(new PushTask(job, target, networkNodes.get(target)));
+        }
+    }
+
+    /**
+     * This will lookup the servernodes that are best suitable to push the file to, using the
+     * placement strategy. Nodes that already have the file, have too little space or failed too
+     * often are skipped. The local estimate of the free space of the chosen nodes is lowered, so
+     * the next files spread over the other nodes.
+     * @param networkNodes
+     * @param holders the servers that already have the file
+     * @param count the amount of servers needed
+     * @param filesize the size of the file
+     * @return Addresses of the best-target servernodes, can be less than the count
+     */
+    private List<InetAddress> selectTargetServers(Map<InetAddress, ServerNode> networkNodes,
+            Set<UUID> holders, int count, long filesize) {
+        List<PlacementStrategy.Candidate> candidates = new ArrayList<>();
         for (Map.Entry<InetAddress, ServerNode> entry : networkNodes.entrySet()) {
-            InetAddress inetAddress = entry.getKey();
             ServerNode serverNode = entry.getValue();
+            if (!holders.contains(serverNode.getId()) && serverNode.getFreespace() > filesize
+                    && getBreaker(entry.getKey()).isAvailable()) {
+                candidates.add(new PlacementStrategy.Candidate(entry.getKey(), serverNode, getPendingPushes(entry.getKey())));
+            }
+        }
 
-            // Check if this server got more freespace
-            if (serverNode.getFreespace() > freespace) {
-                targetAddress = inetAddress;
-                freespace = serverNode.getFreespace();
+        List<InetAddress> targets = new ArrayList<>();
+        for (PlacementStrategy.Candidate candidate : placement.order(candidates)) {
+            if (targets.size() >= count) {
+                break;
+            }
+            // Claims the trial push of a node that is being tested
+            if (!getBreaker(candidate.getAddress()).tryAcquire()) {
+                continue;
             }
+            ServerNode serverNode = candidate.getNode();
+            // Update the freespace of the other server (just the local reference)
+            serverNode.setFreespace(serverNode.getFreespace() - filesize);
+            targets.add(candidate.getAddress());
         }
-        return targetAddress;
+        return targets;
     }
 
     /**
-     * Replicates the given fileid to one of the servernodes.
-     * @param networkNodes
-     * @param fileid
-     * @throws IOException
+     * The amount of files that are being pushed to the node right now.
      */
-    private void replicateFile(Map<InetAddress, ServerNode> networkNodes, UUID fileid) throws IOException {
-        ClientSocket socket = null;
+    private int getPendingPushes(InetAddress target) {
+        Semaphore slot = peerSlots.get(target);
+        return slot == null ? 0 : Settings.REPLICATION_PEER_CONCURRENCY - slot.availablePermits();
+    }
 
-        // Get the best server node
-        InetAddress targetServer = this.selectTargetServer(networkNodes);
-        ServerNode serverinfo = networkNodes.get(targetServer);
-        // Get the meta file (will be updated later on
-        FileMeta meta = srvmgr.getArchive().getFileMeta(fileid);
-        // Add target server to meta
-        meta.getServerlocations().add(serverinfo.getId());
+    /**
+     * Creates the placement strategy with the given name.
+     * @param name one of the REPLICATION_PLACEMENT names in {@link Settings}
+     */
+    private static PlacementStrategy createPlacementStrategy(String name) {
+        switch (name) {
+            case Settings.REPLICATION_PLACEMENT_MOST_FREE:
+                return new MostFreePlacement();
+            case Settings.REPLICATION_PLACEMENT_WEIGHTED:
+                return new WeightedRandomPlacement();
+            case Settings.REPLICATION_PLACEMENT_TWO_CHOICES:
+                return new TwoChoicesPlacement();
+            default:
+                logger.error("Unknown placement strategy '" + name + "', using "
+                        + Settings.REPLICATION_PLACEMENT_TWO_CHOICES + ".");
+                return new TwoChoicesPlacement();
+        }
+    }
+
+    /**
+     * Pushes the file to a single server.
+     * @return true if the server has the file
+     */
+    private boolean pushFile(FileMeta meta, InetAddress target, ServerNode serverinfo) {
+        Semaphore slot = peerSlots.get(target);
+        if (slot == null) {
+            slot = new Semaphore(Settings.REPLICATION_PEER_CONCURRENCY);
+            Semaphore existing = peerSlots.putIfAbsent(target, slot);
+            if (existing != null) {
+                slot = existing;
+            }
+        }
 
-        logger.debug("Replicating file '" + fileid + "' to server '" + serverinfo.getId() + "'.");
+        // The target must see itself in the meta, otherwise it would replicate the file again
+        FileMeta sendmeta = meta.copy();
+        sendmeta.getServerlocations().add(serverinfo.getId());
 
-        // Send the actual file
+        logger.debug("Replicating file '" + meta.getId() + "' to server '" + serverinfo.getId() + "'.");
+        PeerConnectionPool pool = srvmgr.getConnectionPool();
+        CircuitBreaker breaker = getBreaker(target);
+        ClientSocket socket = null;
+        slot.acquireUninterruptibly();
         try {
-            socket = new ClientSocket(true);
-            socket.openConnection(targetServer);
+            socket = pool.borrow(target);
 
-            // Send the file to the other server
-            if (socket.sendFile(meta, srvmgr.getArchive().getFileObject(fileid))) {
+            // Send the file to the other server, a chunked file only sends the chunks the server
+            // misses, otherwise a retry continues where a broken push stopped
+            Archive archive = srvmgr.getArchive();
+            boolean sent = archive.isChunked(meta.getId())
+                    ? socket.sendFileChunks(sendmeta, archive)
+                    : socket.sendFileResumable(sendmeta, archive.getFileObject(meta.getId()));
+            pool.release(target, socket);
+            // The node answered, so it is reachable even if it refused the file
+            breaker.success();
+            if (sent) {
                 logger.debug("File replicated to " + serverinfo.getId());
             }
-        } catch (IOException ex) {
-            logger.error("Error replicating file " + fileid, ex);
-            // Readd for replication
-            srvmgr.getReplicationStack().addFileForReplication(fileid);
-            return;
+            return sent;
+        } catch (IOException | RuntimeException ex) {
+            // Also on a bug, otherwise the connection leaks and a half open breaker never closes
+            pool.invalidate(socket);
+            breaker.failure();
+            if (breaker.getState() == CircuitBreaker.State.OPEN) {
+                logger.warn("Server " + serverinfo.getId() + " failed too often, not pushing files to it for "
+                        + Settings.REPLICATION_BREAKER_OPEN_TIME + " ms.");
+            }
+            logger.error("Error replicating file " + meta.getId() + " to " + serverinfo.getId(), ex);
+            return false;
         } finally {
-            try {
-                if (socket != null)
-                    socket.closeConnection();
-            } catch (IOException ex) {
+            slot.release();
+        }
+    }
+
+    private CircuitBreaker getBreaker(InetAddress target) {
+        CircuitBreaker breaker = breakers.get(target);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(Settings.REPLICATION_BREAKER_FAILURES, Settings.REPLICATION_BREAKER_OPEN_TIME);
+            CircuitBreaker existing = breakers.putIfAbsent(target, breaker);
+            if (existing != null) {
+                breaker = existing;
             }
         }
+        return breaker;
+    }
 
-        // Update the freespace of the other server (just the local reference)
-        serverinfo.setFreespace(serverinfo.getFreespace() - srvmgr.getArchive().getFileSize(fileid));
+    /**
+     * Puts a taken file back on the replication stack. The delay doubles with every failed
+     * attempt of the file and is randomized, so files that failed together do not all come back
+     * at the same time.
+     */
+    private void retryLater(UUID fileid) {
+        int attempts = srvmgr.getReplicationStack().getAttempts(fileid);
+        long delay = getRetryDelay(attempts);
+        logger.debug("Retrying file '" + fileid + "' in " + delay + " ms (attempt " + (attempts + 1) + ").");
+        srvmgr.getReplicationStack().retry(fileid, delay);
+    }
+
+    /**
+     * The delay before the next attempt, exponential in the amount of failed attempts with a
+     * random part of up to half the delay.
+     * @param attempts the amount of failed attempts so far
+     */
+    private static long getRetryDelay(int attempts) {
+        long delay = Settings.REPLICATION_RETRY_DELAY;
+        for (int i = 0; i < attempts && delay < Settings.REPLICATION_RETRY_MAX_DELAY; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, Settings.REPLICATION_RETRY_MAX_DELAY);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
 
+    /**
+     * Called when all pushes of a file are done. Adds the new locations to the meta and informs
+     * the other servers.
+     */
+    private void finishReplication(ReplicationJob job) {
+        UUID fileid = job.meta.getId();
         try {
-            srvmgr.getArchive().updateContentFile(meta);
+            FileMeta meta;
+            synchronized (metaLock) {
+                // Reload, the meta could have changed during the transfers
+                meta = srvmgr.getArchive().getFileMeta(fileid);
+                if (meta == null) {
+                    logger.debug("File '" + fileid + "' was removed during replication.");
+                    return;
+                }
 
-            // Update the meta of the other servers
-            for (InetAddress addr : networkNodes.keySet()) {
-                // The targetserver already got the update
-                if (!addr.equals(targetServer)) {
-                    try {
-                        socket = new ClientSocket(true);
-                        socket.sendMetaUpdate(meta);
-                    } catch (IOException ex) {
-                        logger.error("Could not send meta update to " + addr.getHostAddress(), ex);
-                        continue;
-                    } finally {
-                        try {
-                            if (socket != null)
-                                socket.closeConnection();
-                        } catch (IOException ex) {
-                        }
+                List<UUID> locations = meta.getServerlocations();
+                if (!locations.contains(srvmgr.getServerUUID())) {
+                    locations.add(srvmgr.getServerUUID());
+                }
+                for (UUID serverid : job.getReplicatedTo()) {
+                    if (!locations.contains(serverid)) {
+                        locations.add(serverid);
                     }
                 }
+                srvmgr.getArchive().updateContentFile(meta);
             }
+
+            // Update the meta of the other servers
+            final FileMeta updatedmeta = meta;
+            srvmgr.getFanoutDispatcher().dispatch(srvmgr.getMembership().getNodes(), new FanoutDispatcher.PeerRequest() {
+                @Override
+                public boolean send(ClientSocket socket) throws IOException {
+                    socket.sendMetaUpdate(updatedmeta);
+                    return true;
+                }
+            }, "metaupdate of " + fileid);
         } catch (IOException ex) {
             logger.error("Could not update metadata for the file " + fileid, ex);
+        } finally {
+            if (job.hasFailures()) {
+                // Retry later, to get the missing copies
+                retryLater(fileid);
+            } else {
+                srvmgr.getReplicationStack().complete(fileid);
+            }
+            fileSlots.release();
+        }
+    }
+
+    /**
+     * Pushes a file to one of its targets.
+     */
+    private class PushTask implements Runnable {
+
+        private final ReplicationJob job;
+        private final InetAddress target;
+        private final ServerNode serverinfo;
+
+        PushTask(ReplicationJob job, InetAddress target, ServerNode serverinfo) {
+            this.job = job;
+            this.target = target;
+            this.serverinfo = serverinfo;
+        }
+
+        @Override
+        public void run() {
+            boolean sent = false;
+            try {
+                sent = pushFile(job.meta, target, serverinfo);
+            } finally {
+                if (job.done(serverinfo.getId(), sent)) {
+                    finishReplication(job);
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of the replication of a single file to its targets.
+     */
+    private static class ReplicationJob {
+
+        private final FileMeta meta;
+        private final AtomicInteger remaining;
+        private final List<UUID> replicatedTo = Collections.synchronizedList(new ArrayList<UUID>());
+        private volatile boolean failures = false;
+
+        ReplicationJob(FileMeta meta, int targets) {
+            this.meta = meta;
+            this.remaining = new AtomicInteger(targets);
+        }
+
+        /**
+         * Marks a push as done.
+         * @return true if this was the last push of the file
+         */
+        boolean done(UUID serverid, boolean sent) {
+            if (sent) {
+                replicatedTo.add(serverid);
+            } else {
+                failures = true;
+            }
+            return remaining.decrementAndGet() == 0;
+        }
+
+        List<UUID> getReplicatedTo() {
+            synchronized (replicatedTo) {
+                return new ArrayList<>(replicatedTo);
+            }
+        }
+
+        boolean hasFailures() {
+            return failures;
         }
     }
 }
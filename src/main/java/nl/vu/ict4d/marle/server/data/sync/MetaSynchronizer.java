@@ -0,0 +1,221 @@
+package nl.vu.ict4d.marle.server.data.sync;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import nl.vu.ict4d.marle.archive.Archive;
+import nl.vu.ict4d.marle.server.MarleManager;
+import nl.vu.ict4d.marle.server.data.ClientSocket;
+import nl.vu.ict4d.marle.server.data.PeerConnectionPool;
+import nl.vu.ict4d.marle.server.file.FileMeta;
+import nl.vu.ict4d.marle.server.multicast.ServerNode;
+import nl.vu.ict4d.marle.server.util.Settings;
+import org.apache.log4j.Logger;
+
+/**
+ * Asks every server node in the background for the filemeta that changed since the last time,
+ * so updates and removals that were missed (for example during a network partition) still reach
+ * this server. Only the changes are send, so the traffic does not grow with the archive.
+ *
+ * A copy of a filemeta only replaces the stored one when its version is higher.
+ *
+ * After each round the removals that every server node received are forgotten, the other
+ * removals are kept (also over a restart) so a node that missed them can not bring the
+ * filemeta back.
+ *
+ * Every round starts by comparing the root of the filemeta hash trees, a node with the same
+ * filemeta costs a single small request. When there are no changes to ask for, on the first
+ * contact with a node or after it restarted, the trees are walked down along the nodes that
+ * differ and only the filemeta of the leaves that differ is send. The trees are also walked when
+ * the roots still differ after the changes were received, as not every difference shows up in
+ * the changes (a removal that was forgotten, or a change that was merged before the cursor).
+ *
+ * @author RMH
+ */
+public class MetaSynchronizer extends Thread {
+
+    private static final Logger logger = Logger.getLogger("MarleLogger");
+    private static final List<Integer> ROOT = Collections.singletonList(0);
+    private final MarleManager srvmgr;
+    /** How far the changes of every node were received, on node id. */
+    private final Map<UUID, ClientSocket.ChangeCursor> cursors = new HashMap<>();
+
+    public MetaSynchronizer(MarleManager servermanager) {
+        super("MARLE METASYNC");
+        this.srvmgr = servermanager;
+        setDaemon(true);
+    }
+
+    @Override
+    @SuppressWarnings("SleepWhileInLoop")
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(Settings.META_SYNC_INTERVAL);
+                Map<InetAddress, ServerNode> nodes = srvmgr.getMembership().getNodes();
+                for (Map.Entry<InetAddress, ServerNode> node : nodes.entrySet()) {
+                    synchronize(node.getKey(), node.getValue());
+                }
+                int expired = srvmgr.getArchive().expireRemovals(nodes.keySet());
+                if (expired > 0) {
+                    logger.debug("Forgot " + expired + " removals all server nodes received.");
+                }
+            } catch (InterruptedException ie) {
+                logger.info("Meta synchronizer interrupted, starting new round.");
+            } catch (RuntimeException ex) {
+                logger.error("Exception when synchronizing the filemeta.", ex);
+            }
+        }
+    }
+
+    /**
+     * Brings the filemeta up to date with that of a single node.
+     * @param address
+     * @param node
+     */
+    private void synchronize(InetAddress address, ServerNode node) {
+        PeerConnectionPool pool = srvmgr.getConnectionPool();
+        ClientSocket.ChangeCursor cursor = cursors.get(node.getId());
+        ChangeMerger merger = new ChangeMerger();
+        ClientSocket socket = null;
+        try {
+            socket = pool.borrow(address);
+            ClientSocket.TreeHashes root = socket.requestMetaTree(0, ROOT);
+            if (root == null) {
+                // An older server, its changes arrive through the meta updates only
+                pool.release(address, socket);
+                return;
+            }
+
+            if (Arrays.equals(root.getChildren(0), srvmgr.getArchive().getMetaTreeChildren(0, 0))) {
+                // Nothing differs, all changes up to the hashes are known
+                cursor = new ClientSocket.ChangeCursor(root.getEpoch(), root.getSequence(), true);
+            } else {
+                boolean walked = false;
+                if (cursor == null || !cursor.getEpoch().equals(root.getEpoch())) {
+                    merger.compared = compare(socket, root, merger);
+                    cursor = new ClientSocket.ChangeCursor(root.getEpoch(), root.getSequence(), false);
+                    walked = true;
+                }
+                cursor = receiveChanges(socket, cursor, merger);
+
+                if (!walked) {
+                    root = socket.requestMetaTree(0, ROOT);
+                    if (root == null) {
+                        throw new IOException("Server " + node.getId() + " did not send the tree hashes.");
+                    }
+                    if (!Arrays.equals(root.getChildren(0), srvmgr.getArchive().getMetaTreeChildren(0, 0))) {
+                        // The changes did not repair all differences
+                        merger.compared = compare(socket, root, merger);
+                        cursor = receiveChanges(socket,
+                                new ClientSocket.ChangeCursor(root.getEpoch(), root.getSequence(), false), merger);
+                    }
+                }
+            }
+            cursors.put(node.getId(), cursor);
+            pool.release(address, socket);
+        } catch (IOException ex) {
+            pool.invalidate(socket);
+            logger.debug("Could not synchronize the filemeta with " + node.getId() + ": " + ex.getMessage());
+        }
+
+        if (merger.updated > 0 || merger.removed > 0) {
+            logger.info("Synchronized the filemeta with " + node.getId() + ": " + merger.updated + " updated, "
+                    + merger.removed + " removed, " + merger.compared + " buckets compared.");
+        }
+    }
+
+    /**
+     * Receives the changes since the cursor, including those made during a comparison.
+     * @return the cursor after the last change
+     * @throws IOException
+     */
+    private ClientSocket.ChangeCursor receiveChanges(ClientSocket socket, ClientSocket.ChangeCursor cursor,
+            ChangeMerger merger) throws IOException {
+        do {
+            cursor = socket.requestMetaChanges(cursor, merger);
+            if (cursor == null) {
+                throw new IOException("Server did not send its changes.");
+            }
+        } while (!cursor.isComplete());
+        return cursor;
+    }
+
+    /**
+     * Walks down the filemeta hash trees of both servers along the nodes that differ, and merges
+     * the filemeta of the leaves that differ. Takes a request per level of the tree, whatever
+     * the size of the archive.
+     * @param socket
+     * @param root the hashes of the children of the root of the other tree
+     * @param merger
+     * @return the amount of leaves that differ
+     * @throws IOException
+     */
+    private int compare(ClientSocket socket, ClientSocket.TreeHashes root, ChangeMerger merger) throws IOException {
+        List<Integer> nodes = ROOT;
+        ClientSocket.TreeHashes hashes = root;
+        for (int level = 0; ; level++) {
+            List<Integer> differing = new ArrayList<>();
+            for (int i = 0; i < nodes.size(); i++) {
+                long[] theirs = hashes.getChildren(i);
+                long[] ours = srvmgr.getArchive().getMetaTreeChildren(level, nodes.get(i));
+                for (int digit = 0; digit < Archive.META_TREE_FANOUT; digit++) {
+                    if (theirs[digit] != ours[digit]) {
+                        differing.add(nodes.get(i) * Archive.META_TREE_FANOUT + digit);
+                    }
+                }
+            }
+            if (differing.isEmpty()) {
+                return 0;
+            }
+            if (level + 1 == Archive.META_TREE_DEPTH) {
+                // Filemeta only this side has can only be pulled by the other side, removals are send along
+                if (socket.requestMetaBuckets(differing, merger) < 0) {
+                    throw new IOException("Server did not send the filemeta of the buckets.");
+                }
+                return differing.size();
+            }
+            nodes = differing;
+            hashes = socket.requestMetaTree(level + 1, nodes);
+            if (hashes == null) {
+                throw new IOException("Server did not send the tree hashes.");
+            }
+        }
+    }
+
+    /**
+     * Applies the received changes to the archive.
+     */
+    private class ChangeMerger implements ClientSocket.ChangeReceiver {
+
+        private int updated = 0;
+        private int removed = 0;
+        private int compared = 0;
+
+        @Override
+        public void changed(FileMeta meta) throws IOException {
+            if (srvmgr.getArchive().mergeFileMeta(meta)) {
+                updated++;
+            }
+        }
+
+        @Override
+        public void removed(UUID fileid, long version) throws IOException {
+            Archive archive = srvmgr.getArchive();
+            if (archive.mergeRemoval(fileid, version)) {
+                // Same as a delete request: stop replicating and drop the content
+                srvmgr.getReplicationStack().removeReplicationFile(fileid);
+                if (archive.hasFile(fileid)) {
+                    archive.deleteFile(fileid);
+                }
+                removed++;
+            }
+        }
+    }
+}
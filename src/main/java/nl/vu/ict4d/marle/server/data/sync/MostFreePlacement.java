@@ -0,0 +1,26 @@
+package nl.vu.ict4d.marle.server.data.sync;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Prefers the nodes with the most free space. This puts a whole batch of files on the same node
+ * until its free space estimate drops below the next one.
+ *
+ * @author RMH
+ */
+class MostFreePlacement implements PlacementStrategy {
+
+    @Override
+    public List<Candidate> order(List<Candidate> candidates) {
+        // The servers with the most freespace first
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate o1, Candidate o2) {
+                return Long.compare(o2.getNode().getFreespace(), o1.getNode().getFreespace());
+            }
+        });
+        return candidates;
+    }
+}
@@ -0,0 +1,61 @@
+package nl.vu.ict4d.marle.server.data.sync;
+
+import java.net.InetAddress;
+import java.util.List;
+import nl.vu.ict4d.marle.server.multicast.ServerNode;
+
+/**
+ * Decides to which server nodes a file is pushed when it is replicated.
+ *
+ * @author RMH
+ */
+public interface PlacementStrategy {
+
+    /**
+     * Orders the nodes that can take the file, the first node is the preferred target. All
+     * candidates must be returned, the replicator walks the list until it has enough targets.
+     *
+     * @param candidates the nodes that can take the file, the list may be changed
+     * @return the candidates in order of preference
+     */
+    List<Candidate> order(List<Candidate> candidates);
+
+    /**
+     * A server node that can take the file.
+     */
+    class Candidate {
+
+        private final InetAddress address;
+        private final ServerNode node;
+        private final int pendingPushes;
+
+        public Candidate(InetAddress address, ServerNode node, int pendingPushes) {
+            this.address = address;
+            this.node = node;
+            this.pendingPushes = pendingPushes;
+        }
+
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        public ServerNode getNode() {
+            return node;
+        }
+
+        /**
+         * The load of the node, the connections it reported plus the files this server is
+         * pushing to it right now.
+         */
+        public int getLoad() {
+            return node.getActiveConnections() + pendingPushes;
+        }
+
+        /**
+         * The free space divided by the load, a higher score is a better target.
+         */
+        public double getScore() {
+            return (double) node.getFreespace() / (1 + getLoad());
+        }
+    }
+}
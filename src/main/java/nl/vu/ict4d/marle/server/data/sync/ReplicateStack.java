@@ -1,22 +1,98 @@
 package nl.vu.ict4d.marle.server.data.sync;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import nl.vu.ict4d.marle.server.util.AppendLog;
+import org.apache.log4j.Logger;
 
 /**
- * Stack to list file that are marked for replication to other servers
+ * Stack to list file that are marked for replication to other servers.
+ *
+ * A file is on the stack at most once, adding it again only raises its priority. Files are taken
+ * in order of priority and FIFO within a priority. The stack does not use a lock, a removed or
+ * upgraded file leaves a stale entry in its queue that is skipped when it is taken.
+ *
+ * A file stays known to the stack until its replication is completed (or it is removed), files
+ * that failed are retried later. When created with a journal every change is written to it, so
+ * the files that still need replication are back on the stack after a restart.
+ *
  * @author RMH
  */
 public class ReplicateStack {
 
-    private static final Object _SYNCLOCK = new Object();
-    private final List<UUID> items;
+    private static final Logger logger = Logger.getLogger("MarleLogger");
+    /** The amount of journal records after which the journal is rewritten. */
+    private static final int COMPACT_THRESHOLD = 1000;
+    private static final String RECORD_QUEUED = "Q";
+    private static final String RECORD_DONE = "D";
 
+    /**
+     * The priority of a file on the stack, the first priority is taken first.
+     */
+    public enum Priority {
+
+        /** A new file uploaded by a client. */
+        UPLOAD,
+        /** A file received from another server. */
+        NORMAL,
+        /** A file of which the replication failed before. */
+        RETRY
+    }
+
+    /** All files that are not yet replicated, waiting, delayed or being replicated. */
+    private final ConcurrentHashMap<UUID, Entry> tracked = new ConcurrentHashMap<>();
+    /** The files that are being replicated, taken from the stack. */
+    private final ConcurrentHashMap<UUID, Entry> active = new ConcurrentHashMap<>();
+    /** The files on the stack that can be taken, mapped to their live entry. */
+    private final ConcurrentHashMap<UUID, Entry> items = new ConcurrentHashMap<>();
+    /** The files on the stack in the order they are taken, one queue per priority on its ordinal. */
+    private final List<Queue<Entry>> queues;
+    /** Failed files waiting for their next attempt. */
+    private final DelayQueue<Entry> delayed = new DelayQueue<>();
+    /** One permit for every file on the stack. */
+    private final Semaphore available = new Semaphore(0);
+    private final AppendLog journal;
+
+    /**
+     * Creates a stack that is only kept in memory.
+     */
     public ReplicateStack() {
-        items = new LinkedList<>();
+        this.queues = createQueues();
+        this.journal = null;
+    }
+
+    /**
+     * Creates a stack that is kept in the given journal. The files in the journal are put back on
+     * the stack.
+     * @param journalPath
+     * @throws IOException if the journal could not be read
+     */
+    public ReplicateStack(Path journalPath) throws IOException {
+        this.queues = createQueues();
+        this.journal = new AppendLog(journalPath);
+        recover();
+    }
+
+    private static List<Queue<Entry>> createQueues() {
+        List<Queue<Entry>> result = new ArrayList<>(Priority.values().length);
+        for (int i = 0; i < Priority.values().length; i++) {
+            result.add(new ConcurrentLinkedQueue<Entry>());
+        }
+        return Collections.unmodifiableList(result);
     }
 
     /**
@@ -24,17 +100,120 @@ public class ReplicateStack {
      * @param id
      */
     public void addFileForReplication(UUID id) {
-        synchronized (_SYNCLOCK) {
-            items.add(id);
+        addFileForReplication(id, Priority.NORMAL);
+    }
+
+    /**
+     * Add a file for replication to a different server. If the file is already on the stack with
+     * a lower priority it is moved up, otherwise nothing changes.
+     * @param id
+     * @param priority
+     */
+    public void addFileForReplication(UUID id, Priority priority) {
+        Entry entry = new Entry(id, priority, 0, 0);
+        Entry existing = items.putIfAbsent(id, entry);
+        if (existing == null) {
+            // Replaces a delayed or active entry of the file
+            tracked.put(id, entry);
+            persist(id);
+            queues.get(priority.ordinal()).add(entry);
+            available.release();
+        } else if (existing.raise(priority)) {
+            // Also queue the entry in the higher queue, the one taken first wins
+            queues.get(priority.ordinal()).add(existing);
+            persist(id);
         }
     }
-    
+
     /**
      * Removes an item from the replication list
-     * @param id 
+     * @param id
      */
     public void removeReplicationFile(UUID id) {
-        //TODO
+        active.remove(id);
+        if (tracked.remove(id) != null) {
+            persist(id);
+        }
+        if (items.remove(id) != null) {
+            // The entry stays in its queue and is skipped when taken
+            available.tryAcquire();
+        }
+    }
+
+    /**
+     * Marks the replication of a taken file as done, the file is forgotten.
+     * @param id
+     */
+    public void complete(UUID id) {
+        Entry entry = active.remove(id);
+        // Only if the file was not added again in the meantime
+        if (entry != null && tracked.remove(id, entry)) {
+            persist(id);
+        }
+    }
+
+    /**
+     * Puts a taken file back on the stack, to be taken again after the given delay.
+     * @param id
+     * @param delay the amount of ms to wait before the file can be taken again
+     */
+    public void retry(UUID id, long delay) {
+        Entry entry = active.remove(id);
+        Entry retry = new Entry(id, Priority.RETRY, entry == null ? 1 : entry.attempts + 1,
+                System.currentTimeMillis() + delay);
+        boolean scheduled = entry == null ? tracked.putIfAbsent(id, retry) == null : tracked.replace(id, entry, retry);
+        if (scheduled) {
+            // Otherwise the file was added again, and the newer entry is used
+            persist(id);
+            delayed.add(retry);
+        }
+    }
+
+    /**
+     * Checks if the file is waiting for replication or being replicated.
+     * @param id
+     */
+    public boolean contains(UUID id) {
+        return tracked.containsKey(id);
+    }
+
+    /**
+     * The amount of failed attempts to replicate the taken file.
+     * @param id
+     * @return the attempts, 0 if the file is not being replicated
+     */
+    public int getAttempts(UUID id) {
+        Entry entry = active.get(id);
+        return entry == null ? 0 : entry.attempts;
+    }
+
+    /**
+     * Takes the file with the highest priority from the stack, waiting for one if the stack is
+     * empty. The file must be given back with {@link #complete(UUID)} or
+     * {@link #retry(UUID, long)}.
+     * @param timeout the max amount of ms to wait
+     * @return the fileid or NULL if no file was added within the timeout
+     * @throws InterruptedException
+     */
+    public UUID take(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            promoteDelayed();
+
+            long remaining = deadline - System.nanoTime();
+            // Wake up when the next delayed file can be taken
+            Entry next = delayed.peek();
+            long wait = next == null ? remaining : Math.min(remaining, next.getDelay(TimeUnit.NANOSECONDS));
+            if (available.tryAcquire(Math.max(0, wait), TimeUnit.NANOSECONDS)) {
+                UUID id = poll();
+                if (id != null) {
+                    return id;
+                }
+                // The permit belonged to a file that was removed at the same time
+            } else if (remaining <= 0) {
+                return null;
+            }
+        }
     }
 
     /**
@@ -45,30 +224,177 @@ public class ReplicateStack {
     public List<UUID> getItems(int amount) {
         List<UUID> retList = new LinkedList<>();
 
-        int i = amount;
-        synchronized (_SYNCLOCK) { 
-            // Get the first items from the list (FIFO)
-            for (Iterator<UUID> it = items.iterator(); it.hasNext() && i > 0;) {
-                UUID object = it.next();
-                
-                retList.add(object);
-                
-                // Remove the item from the stack
-                it.remove();
-                i--;
+        promoteDelayed();
+        while (retList.size() < amount && available.tryAcquire()) {
+            UUID id = poll();
+            if (id != null) {
+                retList.add(id);
             }
         }
 
         return Collections.unmodifiableList(retList);
     }
-    
+
     /**
      * This method will return the amount of items that are currently waiting to be replicated
-     * @return 
+     * @return
      */
     public int getItemsOnStack() {
-        synchronized (_SYNCLOCK) {
-            return items.size();
+        return Math.max(0, tracked.size() - active.size());
+    }
+
+    /**
+     * Moves the delayed files that are due to the stack.
+     */
+    private void promoteDelayed() {
+        Entry entry;
+        while ((entry = delayed.poll()) != null) {
+            if (tracked.get(entry.id) == entry && items.putIfAbsent(entry.id, entry) == null) {
+                queues.get(entry.priority.ordinal()).add(entry);
+                available.release();
+            }
+        }
+    }
+
+    /**
+     * Removes the first live entry from the queues, in order of priority.
+     * @return the fileid or NULL if the queues only hold stale entries
+     */
+    private UUID poll() {
+        for (Queue<Entry> queue : queues) {
+            Entry entry;
+            while ((entry = queue.poll()) != null) {
+                // Only the live entry of a file is taken, removed or moved entries are skipped
+                if (items.remove(entry.id, entry)) {
+                    active.put(entry.id, entry);
+                    return entry.id;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the current state of the file to the journal. The state is read while holding the
+     * journal, so concurrent changes of the same file always end with its latest state.
+     */
+    private void persist(UUID id) {
+        if (journal == null) {
+            return;
+        }
+        synchronized (journal) {
+            try {
+                Entry entry = tracked.get(id);
+                journal.append(entry == null ? RECORD_DONE + " " + id : entry.toRecord());
+                if (journal.getRecordCount() >= COMPACT_THRESHOLD
+                        && journal.getRecordCount() > 2 * tracked.size()) {
+                    compact();
+                }
+            } catch (IOException ex) {
+                logger.error("Could not write the replication journal, the state of file " + id
+                        + " is lost on a restart.", ex);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the files that are still tracked.
+     */
+    private void compact() throws IOException {
+        List<String> records = new ArrayList<>();
+        for (Entry entry : tracked.values()) {
+            records.add(entry.toRecord());
+        }
+        journal.rewrite(records);
+        logger.debug("Replication journal compacted, " + records.size() + " files written.");
+    }
+
+    /**
+     * Reads the journal and puts the files that were not completed back on the stack. Files that
+     * were being replicated when the server stopped are replicated again.
+     */
+    private void recover() throws IOException {
+        Map<UUID, Entry> state = new HashMap<>();
+        for (String record : journal.readRecords()) {
+            try {
+                String[] fields = record.split(" ");
+                UUID id = UUID.fromString(fields[1]);
+                if (fields[0].equals(RECORD_DONE)) {
+                    state.remove(id);
+                } else if (fields[0].equals(RECORD_QUEUED)) {
+                    state.put(id, new Entry(id, Priority.valueOf(fields[2]),
+                            Integer.parseInt(fields[3]), Long.parseLong(fields[4])));
+                } else {
+                    logger.error("Unknown record in the replication journal, skipping: " + record);
+                }
+            } catch (RuntimeException ex) {
+                logger.error("Invalid record in the replication journal, skipping: " + record, ex);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (Entry entry : state.values()) {
+            tracked.put(entry.id, entry);
+            if (entry.nextAttempt > now) {
+                delayed.add(entry);
+            } else {
+                items.put(entry.id, entry);
+                queues.get(entry.priority.ordinal()).add(entry);
+                available.release();
+            }
+        }
+
+        synchronized (journal) {
+            compact();
+        }
+        if (!state.isEmpty()) {
+            logger.info("Loaded " + state.size() + " files for replication from the journal.");
+        }
+    }
+
+    /**
+     * A file on the stack.
+     */
+    private static class Entry implements Delayed {
+
+        private final UUID id;
+        private Priority priority;
+        /** The amount of failed attempts. */
+        private final int attempts;
+        /** The time (ms) after which the file may be taken again. */
+        private final long nextAttempt;
+
+        Entry(UUID id, Priority priority, int attempts, long nextAttempt) {
+            this.id = id;
+            this.priority = priority;
+            this.attempts = attempts;
+            this.nextAttempt = nextAttempt;
+        }
+
+        /**
+         * Raises the priority of the entry.
+         * @return true if the priority was raised
+         */
+        synchronized boolean raise(Priority newPriority) {
+            if (newPriority.compareTo(priority) >= 0) {
+                return false;
+            }
+            priority = newPriority;
+            return true;
+        }
+
+        synchronized String toRecord() {
+            return RECORD_QUEUED + " " + id + " " + priority.name() + " " + attempts + " " + nextAttempt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(nextAttempt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(nextAttempt, ((Entry) o).nextAttempt);
         }
     }
 }
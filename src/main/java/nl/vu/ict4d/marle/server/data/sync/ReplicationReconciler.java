@@ -0,0 +1,135 @@
+package nl.vu.ict4d.marle.server.data.sync;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import nl.vu.ict4d.marle.server.MarleManager;
+import nl.vu.ict4d.marle.server.file.FileMeta;
+import nl.vu.ict4d.marle.server.multicast.ServerNode;
+import nl.vu.ict4d.marle.server.util.Settings;
+import org.apache.log4j.Logger;
+
+/**
+ * Walks the archive in the background to find files that have less copies on live server nodes
+ * than the replication factor, for example because a node left the network. Those files are put
+ * on the replication stack.
+ *
+ * The archive is walked in small slices with a pause in between, so a large archive never stalls
+ * the server. Of all live nodes that have a file, only the one with the lowest id puts it on its
+ * stack, so a lost copy is not replaced by every node at once.
+ *
+ * @author RMH
+ */
+public class ReplicationReconciler extends Thread {
+
+    private static final Logger logger = Logger.getLogger("MarleLogger");
+    private final MarleManager srvmgr;
+
+    public ReplicationReconciler(MarleManager servermanager) {
+        super("MARLE RECONCILER");
+        this.srvmgr = servermanager;
+        setDaemon(true);
+    }
+
+    @Override
+    @SuppressWarnings("SleepWhileInLoop")
+    public void run() {
+        while (true) {
+            try {
+                // Give the membership time to see the network before judging it
+                Thread.sleep(Settings.RECONCILE_INTERVAL);
+                reconcile();
+            } catch (InterruptedException ie) {
+                logger.info("Reconciler interrupted, starting new pass.");
+            } catch (RuntimeException ex) {
+                logger.error("Exception when checking the replication of the archive.", ex);
+            }
+        }
+    }
+
+    /**
+     * Makes a single pass over the archive.
+     * @throws InterruptedException
+     */
+    private void reconcile() throws InterruptedException {
+        UUID cursor = null;
+        int checked = 0, queued = 0;
+
+        while (true) {
+            List<UUID> slice = srvmgr.getArchive().getFileIds(cursor, Settings.RECONCILE_SLICE);
+            if (slice.isEmpty()) {
+                break;
+            }
+
+            // The view of the network may change during the pass, use the latest one per slice
+            Set<UUID> liveNodes = new HashSet<>();
+            for (ServerNode node : srvmgr.getMembership().getNodes().values()) {
+                liveNodes.add(node.getId());
+            }
+            liveNodes.add(srvmgr.getServerUUID());
+
+            ReplicateStack stack = srvmgr.getReplicationStack();
+            for (UUID fileid : slice) {
+                // Files that are already known to the stack keep their retry schedule
+                if (!stack.contains(fileid) && needsReplication(fileid, liveNodes)) {
+                    stack.addFileForReplication(fileid);
+                    queued++;
+                }
+            }
+            checked += slice.size();
+            cursor = slice.get(slice.size() - 1);
+
+            if (slice.size() < Settings.RECONCILE_SLICE) {
+                break;
+            }
+            Thread.sleep(Settings.RECONCILE_SLICE_PAUSE);
+        }
+
+        if (queued > 0) {
+            logger.info("Checked the replication of " + checked + " files, " + queued + " files are under-replicated.");
+        } else {
+            logger.debug("Checked the replication of " + checked + " files, all files have enough copies.");
+        }
+    }
+
+    /**
+     * Checks if this server should replicate the file.
+     * @param fileid
+     * @param liveNodes the ids of the live server nodes, including this one
+     * @return true if the file has too few live copies and this server is the one to fix that
+     */
+    private boolean needsReplication(UUID fileid, Set<UUID> liveNodes) {
+        FileMeta meta;
+        try {
+            meta = srvmgr.getArchive().getFileMeta(fileid);
+        } catch (IOException ex) {
+            logger.error("Could not load the meta for file " + fileid, ex);
+            return false;
+        }
+        // Only a server with the file can replicate it
+        if (meta == null || !srvmgr.getArchive().hasFile(fileid)) {
+            return false;
+        }
+
+        Set<UUID> liveHolders = new HashSet<>();
+        for (UUID serverid : meta.getServerlocations()) {
+            if (liveNodes.contains(serverid)) {
+                liveHolders.add(serverid);
+            }
+        }
+        liveHolders.add(srvmgr.getServerUUID());
+        if (liveHolders.size() >= Settings.REPLICATION_FACTOR) {
+            return false;
+        }
+
+        // The live holder with the lowest id takes care of the file
+        for (UUID holder : liveHolders) {
+            if (holder.compareTo(srvmgr.getServerUUID()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
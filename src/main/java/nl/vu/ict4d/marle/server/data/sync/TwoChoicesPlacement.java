@@ -0,0 +1,33 @@
+package nl.vu.ict4d.marle.server.data.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Power of two choices: two random nodes are compared and the one with the best free space to
+ * load ratio is taken. This spreads the files almost as well as knowing the exact load of every
+ * node, while a node with a stale (too good) estimate does not get all the files.
+ *
+ * @author RMH
+ */
+class TwoChoicesPlacement implements PlacementStrategy {
+
+    @Override
+    public List<Candidate> order(List<Candidate> candidates) {
+        List<Candidate> result = new ArrayList<>(candidates.size());
+        while (!candidates.isEmpty()) {
+            int first = ThreadLocalRandom.current().nextInt(candidates.size());
+            int second = ThreadLocalRandom.current().nextInt(candidates.size());
+            int chosen = candidates.get(first).getScore() >= candidates.get(second).getScore() ? first : second;
+
+            result.add(candidates.get(chosen));
+            // Remove by moving the last candidate in its place
+            Candidate last = candidates.remove(candidates.size() - 1);
+            if (chosen < candidates.size()) {
+                candidates.set(chosen, last);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,43 @@
+package nl.vu.ict4d.marle.server.data.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Orders the nodes randomly, where the chance of a node to come first is proportional to its
+ * free space divided by its load. Files spread over all nodes, but the emptiest and least busy
+ * nodes get the most.
+ *
+ * @author RMH
+ */
+class WeightedRandomPlacement implements PlacementStrategy {
+
+    @Override
+    public List<Candidate> order(List<Candidate> candidates) {
+        // Weighted sampling without replacement: sort on u^(1/weight), compared as log(u)/weight
+        final List<Double> keys = new ArrayList<>(candidates.size());
+        List<Integer> indexes = new ArrayList<>(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            double weight = Math.max(candidates.get(i).getScore(), Double.MIN_NORMAL);
+            double random = 1.0 - ThreadLocalRandom.current().nextDouble(); // (0, 1]
+            keys.add(Math.log(random) / weight);
+            indexes.add(i);
+        }
+
+        Collections.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(keys.get(o2), keys.get(o1));
+            }
+        });
+
+        List<Candidate> result = new ArrayList<>(candidates.size());
+        for (int index : indexes) {
+            result.add(candidates.get(index));
+        }
+        return result;
+    }
+}
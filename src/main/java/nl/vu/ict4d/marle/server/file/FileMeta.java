@@ -17,8 +17,15 @@ import org.json.simple.JSONObject;
 public class FileMeta {
 
     /** Version indentifier to know how to convert old meta types. */
-    private static final short META_VERSION = 1;
+    public static final short META_VERSION = 1;
     public static final String JSON_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSXXX";
+    /** SimpleDateFormat is not thread safe, every thread gets its own. */
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat(JSON_DATE_FORMAT);
+        }
+    };
     private UUID id; // UUID
     private String name; // Original name of the file
     private String desc; // 
@@ -28,6 +35,7 @@ public class FileMeta {
     private byte[] checksum; // MD5 Hash
     private String location;
     private List<UUID> serverlocations;
+    private long version; // Raised on every change
 
     public FileMeta(UUID id, String name, String desc, UUID sender, String senderip,
             Date date, byte[] Checksum, String location, List<UUID> serverlocations) {
@@ -155,6 +163,58 @@ public class FileMeta {
         this.serverlocations = serverlocations;
     }
 
+    /**
+     * The version of the filemeta, raised by the server that changes it. Of
+     * two copies of the same filemeta the one with the highest version is
+     * the newest.
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param version the version to set
+     */
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    /**
+     * Checks if this filemeta replaces the other copy of it. Copies with the
+     * same version that differ (changed by two servers at once) are ordered
+     * on their content, so every server keeps the same copy.
+     * @param other a copy of the same filemeta
+     * @return true if this copy is newer
+     */
+    public boolean isNewerThan(FileMeta other) {
+        if (version != other.version) {
+            return version > other.version;
+        }
+        byte[] mine = FileMetaCodec.encode(this);
+        byte[] theirs = FileMetaCodec.encode(other);
+        for (int i = 0; i < Math.min(mine.length, theirs.length); i++) {
+            if (mine[i] != theirs[i]) {
+                return (mine[i] & 0xff) > (theirs[i] & 0xff);
+            }
+        }
+        return mine.length > theirs.length;
+    }
+
+    /**
+     * Creates a copy of this filemeta object. Changing the copy (including its
+     * list of serverlocations) will not change the original.
+     * @return a new FileMeta object with the same values
+     */
+    public FileMeta copy() {
+        FileMeta copy = new FileMeta(id, name, desc, sender, senderip,
+                date == null ? null : new Date(date.getTime()),
+                checksum == null ? null : checksum.clone(), location,
+                new LinkedList<UUID>(serverlocations));
+        copy.setVersion(version);
+        return copy;
+    }
+
     /**
      * Creates a new JSONObject with the data from the filemeta object
      * @return JSONObject with the information from the object.
@@ -170,8 +230,7 @@ public class FileMeta {
         object.put("sender", getSender().toString());
         object.put("senderip", getSenderIP());
         // Set the date to specific format
-        SimpleDateFormat format = new SimpleDateFormat(JSON_DATE_FORMAT);
-        object.put("date", format.format(getDate()));
+        object.put("date", DATE_FORMAT.get().format(getDate()));
         object.put("checksum", Utilities.md5HashByteToString(getChecksum()));
         object.put("loc", getLocation());
 
@@ -180,6 +239,7 @@ public class FileMeta {
             serverlocs.add(srvloc.toString());
         }
         object.put("srvrlocs", serverlocs);
+        object.put("ver", getVersion());
 
         return object;
     }
@@ -206,7 +266,7 @@ public class FileMeta {
 
         // Format bak the date
         String dateString = object.get("date").toString();
-        Date date = new SimpleDateFormat(JSON_DATE_FORMAT).parse(dateString);
+        Date date = DATE_FORMAT.get().parse(dateString);
 
         byte[] checksum = Utilities.md5HashStringToByte(object.get("checksum").toString());
         String loc = object.get("loc").toString();
@@ -219,6 +279,11 @@ public class FileMeta {
         }
 
         // Create the object
-        return new FileMeta(id, name, desc, sender, senderip, date, checksum, loc, serverloc);
+        FileMeta meta = new FileMeta(id, name, desc, sender, senderip, date, checksum, loc, serverloc);
+        // Meta from before versions were kept is version 0
+        if (object.containsKey("ver")) {
+            meta.setVersion(Long.parseLong(object.get("ver").toString()));
+        }
+        return meta;
     }
 }
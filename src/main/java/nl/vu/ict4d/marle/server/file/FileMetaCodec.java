@@ -0,0 +1,153 @@
+package nl.vu.ict4d.marle.server.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Binary encoding of filemeta, used instead of JSON between servers and
+ * clients that agreed on it (see {@link #VERSION}). Ids are written as 16
+ * bytes, the date as epoch milliseconds and the checksum as raw bytes, so
+ * no parsing or formatting is needed. Encoding the same filemeta always
+ * gives the same bytes.
+ *
+ * @author RMH
+ */
+public final class FileMetaCodec {
+
+    /** The meta version of the binary encoding, the JSON encoding is version 1. */
+    public static final short VERSION = 2;
+    /** Strings and lists longer than this are refused when decoding. */
+    private static final int MAX_LENGTH = 16 * 1024 * 1024;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private FileMetaCodec() {
+    }
+
+    /**
+     * Encodes the filemeta into a new array.
+     * @param meta
+     * @return the encoded filemeta
+     */
+    public static byte[] encode(FileMeta meta) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try {
+            write(new DataOutputStream(bytes), meta);
+        } catch (IOException ex) {
+            // Can not happen when writing to memory
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes filemeta that was encoded with {@link #encode(FileMeta)}.
+     * @param data
+     * @return the filemeta
+     * @throws IOException if the data is not valid filemeta
+     */
+    public static FileMeta decode(byte[] data) throws IOException {
+        return read(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    /**
+     * Writes the filemeta to the output.
+     * @param out
+     * @param meta
+     * @throws IOException
+     */
+    public static void write(DataOutput out, FileMeta meta) throws IOException {
+        out.writeByte(VERSION);
+        writeUUID(out, meta.getId());
+        writeString(out, meta.getName());
+        writeString(out, meta.getDesc());
+        writeUUID(out, meta.getSender());
+        writeString(out, meta.getSenderIP());
+        out.writeLong(meta.getDate().getTime());
+        out.writeLong(meta.getVersion());
+        byte[] checksum = meta.getChecksum();
+        out.writeByte(checksum == null ? 0 : checksum.length);
+        if (checksum != null) {
+            out.write(checksum);
+        }
+        writeString(out, meta.getLocation());
+        List<UUID> serverlocations = meta.getServerlocations();
+        out.writeInt(serverlocations.size());
+        for (UUID serverid : serverlocations) {
+            writeUUID(out, serverid);
+        }
+    }
+
+    /**
+     * Reads filemeta written by {@link #write(DataOutput, FileMeta)}.
+     * @param in
+     * @return the filemeta
+     * @throws IOException if the data is not valid filemeta
+     */
+    public static FileMeta read(DataInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unknown filemeta version " + version);
+        }
+        UUID id = readUUID(in);
+        String name = readString(in);
+        String desc = readString(in);
+        UUID sender = readUUID(in);
+        String senderip = readString(in);
+        Date date = new Date(in.readLong());
+        long metaVersion = in.readLong();
+        byte[] checksum = new byte[in.readUnsignedByte()];
+        in.readFully(checksum);
+        String location = readString(in);
+        int count = in.readInt();
+        if (count < 0 || count > MAX_LENGTH) {
+            throw new IOException("Invalid amount of serverlocations: " + count);
+        }
+        List<UUID> serverlocations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            serverlocations.add(readUUID(in));
+        }
+        FileMeta meta = new FileMeta(id, name, desc, sender, senderip, date,
+                checksum.length == 0 ? null : checksum, location, serverlocations);
+        meta.setVersion(metaVersion);
+        return meta;
+    }
+
+    private static void writeUUID(DataOutput out, UUID id) throws IOException {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+
+    private static UUID readUUID(DataInput in) throws IOException {
+        return new UUID(in.readLong(), in.readLong());
+    }
+
+    /**
+     * Writes a string as its length and UTF-8 bytes, unlike writeUTF it is
+     * not limited to 64KB.
+     */
+    private static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+}
@@ -69,6 +69,9 @@ public class NetworkThread extends Thread {
                     socket.send(sendPacket);
 
                     logger.log(Priority.DEBUG, "Responded to: " + sendPacket.getAddress().getHostAddress());
+
+                    // The node that is scanning is alive as well
+                    servermanager.getMembership().seen(packet.getAddress());
                 }
             }
         } catch (IOException ex) {
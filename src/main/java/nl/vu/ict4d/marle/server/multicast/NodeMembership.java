@@ -0,0 +1,135 @@
+package nl.vu.ict4d.marle.server.multicast;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import nl.vu.ict4d.marle.server.util.Settings;
+import org.apache.log4j.Logger;
+
+/**
+ * The view of the server nodes that are currently in the network. The view is refreshed in the
+ * background by scanning the network with a {@link NodeSpotter}, and kept fresh by the
+ * {@link NetworkThread} whenever another node scans the network. Nodes that have not been seen
+ * for a while are dropped.
+ *
+ * Reading the view never blocks, so it can be used while handling requests.
+ *
+ * @author RMH
+ */
+public class NodeMembership extends Thread {
+
+    private static final Logger logger = Logger.getLogger("MarleLogger");
+    private final Map<InetAddress, Member> members = new ConcurrentHashMap<>();
+    private final Object refreshLock = new Object();
+    private boolean refreshRequested = false;
+
+    public NodeMembership() {
+        super("MARLE MEMBERSHIP");
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                update(new NodeSpotter(Settings.MEMBERSHIP_SCAN_TIMEOUT).findNodes());
+            } catch (IOException ex) {
+                logger.error("Could not scan the network for server nodes.", ex);
+            }
+            expire();
+
+            synchronized (refreshLock) {
+                try {
+                    if (!refreshRequested) {
+                        refreshLock.wait(Settings.MEMBERSHIP_REFRESH);
+                    }
+                } catch (InterruptedException ie) {
+                    logger.info("Membership refresh interrupted, scanning again.");
+                }
+                refreshRequested = false;
+            }
+        }
+    }
+
+    /**
+     * The server nodes that are currently alive.
+     *
+     * @return a new map with the nodes, which the caller may change
+     */
+    public Map<InetAddress, ServerNode> getNodes() {
+        long expired = System.currentTimeMillis() - Settings.MEMBERSHIP_TTL;
+        Map<InetAddress, ServerNode> nodes = new HashMap<>();
+        for (Map.Entry<InetAddress, Member> entry : members.entrySet()) {
+            Member member = entry.getValue();
+            if (member.lastSeen >= expired) {
+                nodes.put(entry.getKey(), member.node);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Adds the result of a network scan to the view.
+     *
+     * @param nodes the nodes that responded to the scan
+     */
+    public void update(Map<InetAddress, ServerNode> nodes) {
+        for (Map.Entry<InetAddress, ServerNode> entry : nodes.entrySet()) {
+            if (members.put(entry.getKey(), new Member(entry.getValue())) == null) {
+                logger.info("Server node " + entry.getValue().getId() + " joined at " + entry.getKey().getHostAddress());
+            }
+        }
+    }
+
+    /**
+     * Marks that a node was seen in the network. Unknown nodes trigger a new scan, as only the
+     * scan learns the details of a node.
+     *
+     * @param address
+     */
+    public void seen(InetAddress address) {
+        Member member = members.get(address);
+        if (member != null) {
+            member.lastSeen = System.currentTimeMillis();
+        } else {
+            requestRefresh();
+        }
+    }
+
+    /**
+     * Makes the background thread scan the network right away.
+     */
+    public void requestRefresh() {
+        synchronized (refreshLock) {
+            refreshRequested = true;
+            refreshLock.notifyAll();
+        }
+    }
+
+    /**
+     * Removes the nodes that were not seen within the time to live.
+     */
+    private void expire() {
+        long expired = System.currentTimeMillis() - Settings.MEMBERSHIP_TTL;
+        for (Iterator<Map.Entry<InetAddress, Member>> it = members.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<InetAddress, Member> entry = it.next();
+            if (entry.getValue().lastSeen < expired) {
+                logger.info("Server node " + entry.getValue().node.getId() + " at " + entry.getKey().getHostAddress() + " left.");
+                it.remove();
+            }
+        }
+    }
+
+    private static class Member {
+
+        private final ServerNode node;
+        private volatile long lastSeen = System.currentTimeMillis();
+
+        Member(ServerNode node) {
+            this.node = node;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package nl.vu.ict4d.marle.server.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A simple append-only log of text records, one record per line. Every append
+ * is forced to the disk before it returns, so a record that was appended
+ * survives a crash. A record that was only partially written when the server
+ * went down is dropped when the log is read back.
+ *
+ * Records must not contain line breaks.
+ *
+ * @author RMH
+ */
+public class AppendLog implements Closeable {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private final Path path;
+    private FileChannel channel;
+    private int records = 0;
+
+    /**
+     * Opens (or creates) the log at the given location.
+     * @param path
+     * @throws IOException
+     */
+    public AppendLog(Path path) throws IOException {
+        this.path = path;
+        this.channel = open(path);
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * The location of the log on the filesystem.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Reads all complete records from the log. A torn record at the end of the
+     * log is cut off so new records are appended after the last good one.
+     * @return the records in the order they were appended
+     * @throws IOException
+     */
+    public synchronized List<String> readRecords() throws IOException {
+        List<String> result = new ArrayList<>();
+        byte[] content = Files.readAllBytes(path);
+
+        int start = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] == '\n') {
+                if (i > start) {
+                    result.add(new String(content, start, i - start, CHARSET));
+                }
+                start = i + 1;
+            }
+        }
+
+        // Remove the half written record (if any)
+        channel.truncate(start);
+        channel.position(start);
+        records = result.size();
+        return result;
+    }
+
+    /**
+     * Appends a record to the log and forces it to the disk.
+     * @param record
+     * @throws IOException
+     */
+    public synchronized void append(String record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(CHARSET));
+        channel.position(channel.size());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        records++;
+    }
+
+    /**
+     * Replaces the content of the log with the given records. The new log is
+     * written next to the old one and moved in place, so a crash leaves either
+     * the old or the new log behind.
+     * @param newRecords
+     * @throws IOException
+     */
+    public synchronized void rewrite(Iterable<String> newRecords) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".new");
+        int count = 0;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (String record : newRecords) {
+                ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(CHARSET));
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                count++;
+            }
+            out.force(true);
+        }
+
+        channel.close();
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = open(path);
+        channel.position(channel.size());
+        records = count;
+    }
+
+    /**
+     * Moves the log with all its records to the given location and starts a
+     * new, empty log. The move is atomic, so a crash leaves the records in
+     * either of the two files.
+     * @param target
+     * @throws IOException
+     */
+    public synchronized void rotate(Path target) throws IOException {
+        channel.force(true);
+        channel.close();
+        try {
+            Files.move(path, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            records = 0;
+        } finally {
+            // The old log if the move failed
+            channel = open(path);
+        }
+    }
+
+    /**
+     * Removes all records from the log.
+     * @throws IOException
+     */
+    public synchronized void truncate() throws IOException {
+        channel.truncate(0);
+        channel.force(true);
+        records = 0;
+    }
+
+    /**
+     * The amount of records in the log.
+     */
+    public synchronized int getRecordCount() {
+        return records;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,120 @@
+package nl.vu.ict4d.marle.server.util;
+
+/**
+ * Tunable settings of the server. Until there is a configuration file these are read from the
+ * system properties (-Dmarle.x=y) once, when the server starts.
+ *
+ * @author RMH
+ */
+public final class Settings {
+
+    /** Data server mode using a thread for every connection. */
+    public static final String DATA_MODE_THREAD = "thread";
+    /** Data server mode using a small pool of selectors to wait for requests. */
+    public static final String DATA_MODE_SELECTOR = "selector";
+
+    /** How the data server handles its connections, {@link #DATA_MODE_THREAD} or {@link #DATA_MODE_SELECTOR}. */
+    public static final String DATA_MODE = System.getProperty("marle.data.mode", DATA_MODE_THREAD);
+    /** The amount of selector threads used in selector mode. */
+    public static final int DATA_REACTORS = Integer.getInteger("marle.data.reactors",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    /** The max amount of connections that are handled at the same time, others are rejected as busy. */
+    public static final int DATA_MAX_CONNECTIONS = Integer.getInteger("marle.data.maxconnections",
+            DATA_MODE.equals(DATA_MODE_SELECTOR) ? 4096 : 256);
+
+    /** Run the connection handlers on virtual threads (when the JVM supports them). */
+    public static final String DATA_EXECUTOR_VIRTUAL = "virtual";
+    /** Run the connection handlers on a fixed pool of platform threads. */
+    public static final String DATA_EXECUTOR_POOL = "pool";
+
+    /** What runs the connection handlers, {@link #DATA_EXECUTOR_VIRTUAL} or {@link #DATA_EXECUTOR_POOL}. */
+    public static final String DATA_EXECUTOR = System.getProperty("marle.data.executor", DATA_EXECUTOR_VIRTUAL);
+    /** The amount of threads in the pool when not running on virtual threads. */
+    public static final int DATA_POOL_SIZE = Integer.getInteger("marle.data.poolsize", 64);
+
+    /** How long (ms) an unused connection to another server node is kept open. */
+    public static final int PEER_IDLE_TIMEOUT = Integer.getInteger("marle.peer.idletimeout", 60000);
+    /** The max amount of unused connections that are kept open to a single server node. */
+    public static final int PEER_MAX_IDLE = Integer.getInteger("marle.peer.maxidle", 4);
+    /** How long (ms) a read from another server node may block before the connection is dropped. */
+    public static final int PEER_READ_TIMEOUT = Integer.getInteger("marle.peer.readtimeout", 60000);
+    /** How long (ms) to wait for the answer on the filemeta encoding, servers that do not know it never answer. */
+    public static final int META_HANDSHAKE_TIMEOUT = Integer.getInteger("marle.peer.handshaketimeout", 5000);
+    /** How long (ms) a server that did not answer on the filemeta encoding is only sent JSON, before it is asked again. */
+    public static final int META_LEGACY_RETRY = Integer.getInteger("marle.peer.legacyretry", 600000);
+
+    /** How often (ms) the network is scanned for server nodes. */
+    public static final int MEMBERSHIP_REFRESH = Integer.getInteger("marle.membership.refresh", 60000);
+    /** How long (ms) a server node is considered alive after it was last seen. */
+    public static final int MEMBERSHIP_TTL = Integer.getInteger("marle.membership.ttl", 3 * MEMBERSHIP_REFRESH);
+    /** How long (ms) a network scan waits for server nodes to respond. */
+    public static final int MEMBERSHIP_SCAN_TIMEOUT = Integer.getInteger("marle.membership.scantimeout", 5000);
+
+    /** The amount of threads used to send a request to all server nodes at once. */
+    public static final int FANOUT_THREADS = Integer.getInteger("marle.fanout.threads", 16);
+    /** How long (ms) a request to all server nodes waits for the slowest node. */
+    public static final int FANOUT_TIMEOUT = Integer.getInteger("marle.fanout.timeout", 30000);
+    /** How often (ms) requests that failed are retried. */
+    public static final int FANOUT_RETRY_INTERVAL = Integer.getInteger("marle.fanout.retryinterval", 30000);
+    /** How often a failed request is retried before it is dropped. */
+    public static final int FANOUT_MAX_ATTEMPTS = Integer.getInteger("marle.fanout.maxattempts", 10);
+    /** The max amount of failed requests kept for a single server node. */
+    public static final int FANOUT_MAX_QUEUED = Integer.getInteger("marle.fanout.maxqueued", 1000);
+
+    /** The amount of copies of each file that should exist in the network (including this one). */
+    public static final int REPLICATION_FACTOR = Integer.getInteger("marle.replication.factor", 2);
+    /** The amount of threads pushing files to other server nodes. */
+    public static final int REPLICATION_WORKERS = Integer.getInteger("marle.replication.workers", 8);
+    /** The max amount of files that are being replicated at the same time. */
+    public static final int REPLICATION_MAX_FILES = Integer.getInteger("marle.replication.maxfiles", 32);
+    /** The max amount of files pushed to a single server node at the same time. */
+    public static final int REPLICATION_PEER_CONCURRENCY = Integer.getInteger("marle.replication.peerconcurrency", 2);
+
+    /** Push files to the nodes with the most free space. */
+    public static final String REPLICATION_PLACEMENT_MOST_FREE = "mostfree";
+    /** Push files to random nodes, weighted by free space divided by load. */
+    public static final String REPLICATION_PLACEMENT_WEIGHTED = "weighted";
+    /** Push files to the best of two random nodes (free space divided by load). */
+    public static final String REPLICATION_PLACEMENT_TWO_CHOICES = "twochoices";
+    /** How the replicator picks the nodes to push a file to, one of the REPLICATION_PLACEMENT names. */
+    public static final String REPLICATION_PLACEMENT = System.getProperty("marle.replication.placement",
+            REPLICATION_PLACEMENT_TWO_CHOICES);
+
+    /** How long (ms) a file of which the replication failed waits before it is tried again, doubled on every failure. */
+    public static final int REPLICATION_RETRY_DELAY = Integer.getInteger("marle.replication.retrydelay", 10000);
+    /** The max time (ms) a file of which the replication failed waits before it is tried again. */
+    public static final int REPLICATION_RETRY_MAX_DELAY = Integer.getInteger("marle.replication.retrymaxdelay", 3600000);
+    /** The amount of failed pushes in a row after which no files are pushed to a server node for a while. */
+    public static final int REPLICATION_BREAKER_FAILURES = Integer.getInteger("marle.replication.breakerfailures", 5);
+    /** How long (ms) no files are pushed to a server node that failed too often. */
+    public static final int REPLICATION_BREAKER_OPEN_TIME = Integer.getInteger("marle.replication.breakeropentime", 30000);
+
+    /** How long (ms) the reconciler waits between two passes over the archive. */
+    public static final int RECONCILE_INTERVAL = Integer.getInteger("marle.reconcile.interval", 10 * 60000);
+    /** The amount of files the reconciler checks at once. */
+    public static final int RECONCILE_SLICE = Integer.getInteger("marle.reconcile.slice", 500);
+    /** How long (ms) the reconciler pauses between two slices. */
+    public static final int RECONCILE_SLICE_PAUSE = Integer.getInteger("marle.reconcile.slicepause", 1000);
+
+    /** The size (bytes) of the chunks of a resumable file transfer. */
+    public static final int TRANSFER_CHUNK_SIZE = Integer.getInteger("marle.transfer.chunksize", 1024 * 1024);
+    /** The max amount of files in one batch pull or push, larger batches are split by the client. */
+    public static final int TRANSFER_BATCH_SIZE = Integer.getInteger("marle.transfer.batchsize", 256);
+
+    /** Store new files as content-defined chunks, so equal parts of files are stored once. */
+    public static final boolean ARCHIVE_CHUNKING = Boolean.getBoolean("marle.archive.chunking");
+    /** The max amount of bytes the archive may use. */
+    public static final long ARCHIVE_MAX_SIZE = Long.getLong("marle.archive.maxsize", 512L * 1024 * 1024);
+    /** How long (ms) between two walks over the archive that correct the known space it uses. */
+    public static final int ARCHIVE_USAGE_INTERVAL = Integer.getInteger("marle.archive.usageinterval", 10 * 60000);
+
+    /** How long (ms) the meta synchronizer waits between two rounds over the server nodes. */
+    public static final int META_SYNC_INTERVAL = Integer.getInteger("marle.metasync.interval", 60000);
+    /** The max amount of changes sent in one answer to a changes request. */
+    public static final int META_SYNC_MAX_CHANGES = Integer.getInteger("marle.metasync.maxchanges", 10000);
+    /** How long (ms) a removed filemeta is remembered at least, it is only forgotten once every server node received it. */
+    public static final long META_TOMBSTONE_TIME = Long.getLong("marle.metasync.tombstonetime", 24 * 3600000L);
+
+    private Settings() {
+    }
+}
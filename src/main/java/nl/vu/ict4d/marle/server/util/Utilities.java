@@ -15,7 +15,9 @@ import java.util.UUID;
  */
 public final class Utilities {
 
-    public static final int DIGEST_BUFFER_SIZE = 1024;
+    /** Large reads keep hashing a file from being bound by the amount of reads. */
+    public static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
     private Utilities() {
     }
@@ -51,11 +53,14 @@ public final class Utilities {
      * @return String value of the given bytes
      */
     public static byte[] md5HashStringToByte(String hash) {
-        byte[] buf = new byte[16];
-        int i = 0;
-        while (hash.length() > 0) {
-            buf[i++] = (byte) Integer.parseInt(hash.substring(0, 2), 16);
-            hash = hash.substring(2);
+        byte[] buf = new byte[hash.length() / 2];
+        for (int i = 0; i < buf.length; i++) {
+            int high = Character.digit(hash.charAt(2 * i), 16);
+            int low = Character.digit(hash.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new NumberFormatException("Invalid hash: " + hash);
+            }
+            buf[i] = (byte) ((high << 4) | low);
         }
         return buf;
     }
@@ -67,11 +72,12 @@ public final class Utilities {
      * @return String value of the given bytes
      */
     public static String md5HashByteToString(byte[] bytes) {
-        String result = "";
+        char[] result = new char[bytes.length * 2];
         for (int i = 0; i < bytes.length; i++) {
-            result += Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1);
+            result[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            result[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
         }
-        return result;
+        return new String(result);
     }
 
     /**
@@ -146,19 +152,29 @@ public final class Utilities {
      * @throws IOException
      */
     public static byte[] createChecksum(InputStream stream) throws IOException {
-        try {
-            MessageDigest md5Hasher = MessageDigest.getInstance("MD5");
-            byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+        MessageDigest md5Hasher = createChecksumDigest();
+        byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
 
-            // Read the entire file into the digest
-            int numRead;
-            while ((numRead = stream.read(buffer)) != -1) {
-                md5Hasher.update(buffer, 0, numRead);
-            }
+        // Read the entire file into the digest
+        int numRead;
+        while ((numRead = stream.read(buffer)) != -1) {
+            md5Hasher.update(buffer, 0, numRead);
+        }
+
+        // Do not close the stream here
+        //stream.close();
+        return md5Hasher.digest();
+    }
 
-            // Do not close the stream here
-            //stream.close();
-            return md5Hasher.digest();
+    /**
+     * Creates a new digest for the checksums used in the filemeta, so data can
+     * be hashed while it is being transferred.
+     *
+     * @return a new MD5 digest
+     */
+    public static MessageDigest createChecksumDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
         } catch (NoSuchAlgorithmException ex) {
             // Elevate it to a runtime exception 
             // E.a. this should never be able to happen